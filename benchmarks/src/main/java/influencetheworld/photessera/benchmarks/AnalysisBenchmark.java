@@ -0,0 +1,71 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.FrameAnalyzer;
+import influencetheworld.photessera.PhotoPixel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the average color of every block of a frame, once with a
+ * FrameAnalyzer as FrameRender2 does and once by reading every block of the
+ * image as a PhotoPixel would. One operation is one whole frame analyzed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({"640x360", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    @Param({"10", "40"})
+    public int tileSize;
+
+    private BufferedImage frame;
+    private final int[] color_RGB = new int[3];
+
+    @Setup
+    public void setUp() {
+        frame = SyntheticImages.image(resolution, 1);
+    }
+
+    @Benchmark
+    public int frameAnalyzer() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(frame);
+        int sum = 0;
+        for (int y = 0; y + tileSize <= frame.getHeight(); y += tileSize) {
+            for (int x = 0; x + tileSize <= frame.getWidth(); x += tileSize) {
+                analyzer.getAverageColor(x, y, tileSize, tileSize, color_RGB);
+                sum += color_RGB[0] + color_RGB[1] + color_RGB[2];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int photoPixelAverage() {
+        int sum = 0;
+        for (int y = 0; y + tileSize <= frame.getHeight(); y += tileSize) {
+            for (int x = 0; x + tileSize <= frame.getWidth(); x += tileSize) {
+                PhotoPixel.getAverageColor(frame, x, y, tileSize, tileSize, color_RGB);
+                sum += color_RGB[0] + color_RGB[1] + color_RGB[2];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,101 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.TileBlitter;
+import influencetheworld.photessera.TileLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing a PhotoPixel onto every block of a TYPE_3BYTE_BGR frame, once with
+ * Graphics2D.drawImage and once with a TileBlitter. The PhotoPixels drawImage
+ * draws are kept as BufferedImages either the same type as the frame or
+ * TYPE_INT_RGB, which drawImage has to convert, while the TileBlitter reads
+ * them from the library's TileAtlas. One operation is one whole frame drawn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlitBenchmark {
+
+    @Param({"1920x1080"})
+    public String resolution;
+
+    @Param({"10", "40"})
+    public int tileSize;
+
+    @Param({"TYPE_3BYTE_BGR", "TYPE_INT_RGB"})
+    public String tileType;
+
+    @Param({"1000"})
+    public int librarySize;
+
+    private BufferedImage output;
+    private TileLibrary library;
+    private BufferedImage[] images;
+    private TileBlitter blitter;
+    private int[] tiles;
+    private int columns, rows;
+
+    @Setup
+    public void setUp() {
+        output = new BufferedImage(SyntheticImages.width(resolution), SyntheticImages.height(resolution), BufferedImage.TYPE_3BYTE_BGR);
+        TileLibrary generated = SyntheticImages.library(librarySize, tileSize, 2);
+        int type = tileType.equals("TYPE_INT_RGB") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR;
+        library = new TileLibrary(librarySize);
+        images = new BufferedImage[librarySize];
+        for (int i = 0; i < librarySize; i++) {
+            BufferedImage tile = new BufferedImage(tileSize, tileSize, type);
+            Graphics2D graphics = tile.createGraphics();
+            graphics.drawImage(generated.getTile(i), 0, 0, null);
+            graphics.dispose();
+            images[i] = tile;
+            library.add(tile, generated.getRed(i), generated.getGreen(i), generated.getBlue(i));
+        }
+        blitter = library.getBlitter();
+
+        columns = output.getWidth() / tileSize;
+        rows = output.getHeight() / tileSize;
+        tiles = new int[columns * rows];
+        for (int block = 0; block < tiles.length; block++) {
+            tiles[block] = (block * 7919) % librarySize;
+        }
+    }
+
+    @Benchmark
+    public BufferedImage drawImage() {
+        Graphics2D graphics = output.createGraphics();
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++) {
+                graphics.drawImage(images[tiles[j * columns + i]], null, i * tileSize, j * tileSize);
+            }
+        }
+        graphics.dispose();
+        return output;
+    }
+
+    @Benchmark
+    public BufferedImage tileBlitter() {
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++) {
+                blitter.draw(output, tiles[j * columns + i], i * tileSize, j * tileSize);
+            }
+        }
+        return output;
+    }
+}
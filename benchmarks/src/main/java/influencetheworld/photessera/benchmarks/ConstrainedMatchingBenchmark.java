@@ -0,0 +1,62 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.ConstrainedMatcher;
+import influencetheworld.photessera.FrameAnalyzer;
+import influencetheworld.photessera.TileLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching every block of a frame with limits on how often a PhotoPixel
+ * repeats. The default sizes are about 100k blocks and 50k PhotoPixels. One
+ * operation is one frame matched, without drawing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class ConstrainedMatchingBenchmark {
+
+    //Side length of the blocks, kept small so the frame has many of them
+    private static final int TILE_SIZE = 4;
+
+    @Param({"1264x1264"})
+    public String resolution;
+
+    @Param({"50000"})
+    public int librarySize;
+
+    @Param({"0", "3"})
+    public int maxUses;
+
+    @Param({"0", "5"})
+    public int minDistance;
+
+    private FrameAnalyzer frame;
+    private TileLibrary library;
+
+    @Setup
+    public void setUp() {
+        frame = new FrameAnalyzer(SyntheticImages.image(resolution, 1));
+        library = SyntheticImages.library(librarySize, TILE_SIZE, 2);
+        library.getTree();
+    }
+
+    @Benchmark
+    public int[] assign() {
+        return ConstrainedMatcher.assign(frame, TILE_SIZE, library, maxUses, minDistance);
+    }
+}
@@ -0,0 +1,78 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.DecodeMode;
+import influencetheworld.photessera.EncoderBackend;
+import influencetheworld.photessera.FrameEncoder;
+import influencetheworld.photessera.VideoFrameConversion;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every frame of a video with VideoFrameConversion.decodeFrames in
+ * each DecodeMode. The video is encoded from generated frames into a
+ * temporary file when the benchmark is set up. One operation is one frame
+ * decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final int FRAMES = 60;
+
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    @Param({"SEQUENTIAL", "SEEK"})
+    public DecodeMode decodeMode;
+
+    private File video;
+
+    @Setup
+    public void setUp() throws IOException {
+        video = File.createTempFile("photessera-benchmark", ".mp4");
+        VideoFrameConversion.encoderBackend = EncoderBackend.FFMPEG;
+        FrameEncoder encoder = VideoFrameConversion.createEncoder(video.getAbsolutePath(), 30);
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.encode(SyntheticImages.image(resolution, i));
+        }
+        encoder.finish();
+    }
+
+    @TearDown
+    public void tearDown() {
+        video.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode(final Blackhole blackhole) throws IOException {
+        FFmpegFrameGrabber g = new FFmpegFrameGrabber(video.getAbsolutePath());
+        g.start();
+        try {
+            return VideoFrameConversion.decodeFrames(g, decodeMode, (frame, frameNumber) -> blackhole.consume(frame));
+        } finally {
+            g.stop();
+        }
+    }
+}
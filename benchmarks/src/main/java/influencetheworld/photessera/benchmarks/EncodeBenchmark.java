@@ -0,0 +1,79 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.EncoderBackend;
+import influencetheworld.photessera.FrameEncoder;
+import influencetheworld.photessera.VideoFrameConversion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding rendered frames into a video with the encoder
+ * VideoFrameConversion.createEncoder picks for each EncoderBackend. Every
+ * iteration writes a new video to a temporary file, which is deleted after.
+ * One operation is one frame encoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+    //Different frames are encoded one after another so the encoder sees motion
+    private static final int FRAMES = 16;
+
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    @Param({"FFMPEG", "JCODEC"})
+    public EncoderBackend encoderBackend;
+
+    private BufferedImage[] frames;
+    private File video;
+    private FrameEncoder encoder;
+    private int frameNumber;
+
+    @Setup
+    public void setUp() {
+        frames = new BufferedImage[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = SyntheticImages.image(resolution, i);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startVideo() throws IOException {
+        video = File.createTempFile("photessera-benchmark", ".mp4");
+        VideoFrameConversion.encoderBackend = encoderBackend;
+        encoder = VideoFrameConversion.createEncoder(video.getAbsolutePath(), 30);
+        frameNumber = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void finishVideo() throws IOException {
+        encoder.finish();
+        video.delete();
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        encoder.encode(frames[frameNumber++ % FRAMES]);
+    }
+}
@@ -0,0 +1,101 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.PhotoPixel;
+import influencetheworld.photessera.TileIngester;
+import influencetheworld.photessera.TileLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installing photos as PhotoPixels: decoding and downscaling a photo (what
+ * photoToPixel used to do), analyzing a PhotoPixel's color, and installing a
+ * whole library with TileIngester. The photos are jpgs generated into a
+ * temporary folder when the benchmark is set up. One operation is one photo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final int PHOTOS = 16;
+
+    @Param({"1024x768", "4032x3024"})
+    public String photoResolution;
+
+    @Param({"10", "40"})
+    public int tileSize;
+
+    private File folder;
+    private List<String> photoAddresses;
+    private BufferedImage[] tiles;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("photessera-benchmark").toFile();
+        photoAddresses = new ArrayList<String>();
+        tiles = new BufferedImage[PHOTOS];
+        for (int i = 0; i < PHOTOS; i++) {
+            File photo = new File(folder, "photo-" + i + ".jpg");
+            ImageIO.write(SyntheticImages.image(photoResolution, i), "jpg", photo);
+            photoAddresses.add(photo.getAbsolutePath());
+            tiles[i] = TileIngester.decodeTile(photo.getAbsolutePath(), tileSize);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (String address : photoAddresses) {
+            new File(address).delete();
+        }
+        folder.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS)
+    public int decodeTile() throws IOException {
+        int sum = 0;
+        for (String address : photoAddresses) {
+            sum += TileIngester.decodeTile(address, tileSize).getRGB(0, 0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS)
+    public int analyzeTile() {
+        int sum = 0;
+        for (BufferedImage tile : tiles) {
+            sum += new PhotoPixel(tile).BRIGHTNESS;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS)
+    public TileLibrary ingest() throws IOException {
+        return TileIngester.ingest(photoAddresses, tileSize, null, Runtime.getRuntime().availableProcessors());
+    }
+}
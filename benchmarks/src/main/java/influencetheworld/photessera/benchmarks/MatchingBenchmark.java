@@ -0,0 +1,88 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.ColorCube;
+import influencetheworld.photessera.MatchMode;
+import influencetheworld.photessera.TileLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching the average color of a block to a PhotoPixel, as
+ * FrameRender2.getMostSimilarPhotoPixel does for every block of a frame, with
+ * every MatchMode. One operation is one block matched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+    //Colors matched by every call of the benchmark
+    private static final int COLORS = 4096;
+
+    @Param({"100", "1000", "10000"})
+    public int librarySize;
+
+    @Param({"LINEAR", "TREE", "CUBE", "CUBE_EXACT"})
+    public MatchMode matchMode;
+
+    private TileLibrary library;
+    private int[] red, green, blue;
+
+    @Setup
+    public void setUp() {
+        library = SyntheticImages.library(librarySize, 4, 1);
+
+        //Built here so building them isn't counted as matching
+        library.getTree();
+        library.getColorCube(ColorCube.DEFAULT_BITS_PER_CHANNEL);
+
+        Random random = new Random(2);
+        red = new int[COLORS];
+        green = new int[COLORS];
+        blue = new int[COLORS];
+        for (int i = 0; i < COLORS; i++) {
+            red[i] = random.nextInt(256);
+            green[i] = random.nextInt(256);
+            blue[i] = random.nextInt(256);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLORS)
+    public int match() {
+        int sum = 0;
+        for (int i = 0; i < COLORS; i++) {
+            sum += match(red[i], green[i], blue[i]);
+        }
+        return sum;
+    }
+
+    private int match(int r, int g, int b) {
+        switch (matchMode) {
+            case LINEAR:
+                return library.getMostSimilarLinear(r, g, b);
+            case CUBE:
+                return library.getColorCube(ColorCube.DEFAULT_BITS_PER_CHANNEL).nearest(r, g, b);
+            case CUBE_EXACT:
+                return library.getColorCube(ColorCube.DEFAULT_BITS_PER_CHANNEL).nearestExact(r, g, b);
+            default:
+                return library.getTree().nearest(r, g, b);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.BlockRenderer;
+import influencetheworld.photessera.FrameAnalyzer;
+import influencetheworld.photessera.TileLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a whole frame the way FrameRender2.renderFrame does: analyzing
+ * it, matching every block with the PhotoPixelTree and drawing the matching
+ * PhotoPixels. One operation is one frame rendered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    @Param({"10", "40"})
+    public int tileSize;
+
+    @Param({"1000"})
+    public int librarySize;
+
+    private BufferedImage frame, output;
+    private TileLibrary library;
+    private BlockRenderer.BlockMatcher matcher;
+
+    @Setup
+    public void setUp() {
+        frame = SyntheticImages.image(resolution, 1);
+        output = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        library = SyntheticImages.library(librarySize, tileSize, 2);
+        matcher = library.getTree()::nearest;
+    }
+
+    @Benchmark
+    public BufferedImage renderFrame() {
+        BlockRenderer.render(new FrameAnalyzer(frame), output, tileSize, library, matcher, null);
+        return output;
+    }
+
+    @Benchmark
+    public BufferedImage renderFrameParallel() {
+        BlockRenderer.render(new FrameAnalyzer(frame), output, tileSize, library, matcher, ForkJoinPool.commonPool());
+        return output;
+    }
+}
@@ -0,0 +1,102 @@
+package influencetheworld.photessera.benchmarks;
+
+import influencetheworld.photessera.TileLibrary;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+
+/**
+ * Generates the images the benchmarks run on, so they don't depend on any
+ * photos or videos on disk. Images are smooth blends of random colors with a
+ * little noise on top, which compress and average roughly like real photos.
+ * The same seed always gives the same image.
+ */
+public class SyntheticImages {
+
+    //Distance, in pixels, between the random colors an image is blended from
+    private static final int CELL_SIZE = 48;
+
+    private static final int NOISE = 12;
+
+    /**
+     * Generates an image of the type frames of a video and jpgs are decoded to.
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @param seed Picks the colors of the image
+     * @return A TYPE_3BYTE_BGR image
+     */
+    public static BufferedImage image(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int columns = width / CELL_SIZE + 2, rows = height / CELL_SIZE + 2;
+        int[][] colors = new int[rows * columns][3];
+        for (int[] color : colors) {
+            for (int c = 0; c < 3; c++) {
+                color[c] = random.nextInt(256);
+            }
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y / CELL_SIZE;
+            double v = (double) (y % CELL_SIZE) / CELL_SIZE;
+            for (int x = 0; x < width; x++) {
+                int column = x / CELL_SIZE;
+                double u = (double) (x % CELL_SIZE) / CELL_SIZE;
+                int[] topLeft = colors[row * columns + column], topRight = colors[row * columns + column + 1];
+                int[] bottomLeft = colors[(row + 1) * columns + column], bottomRight = colors[(row + 1) * columns + column + 1];
+                //Blue, green, red
+                for (int c = 2; c >= 0; c--) {
+                    double top = topLeft[c] + (topRight[c] - topLeft[c]) * u;
+                    double bottom = bottomLeft[c] + (bottomRight[c] - bottomLeft[c]) * u;
+                    int value = (int) (top + (bottom - top) * v) + random.nextInt(2 * NOISE + 1) - NOISE;
+                    pixels[i++] = (byte) Math.max(0, Math.min(255, value));
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Generates an image of the given size.
+     * @param resolution Size of the image, written as widthxheight
+     * @param seed Picks the colors of the image
+     * @return A TYPE_3BYTE_BGR image
+     */
+    public static BufferedImage image(String resolution, long seed) {
+        return image(width(resolution), height(resolution), seed);
+    }
+
+    /**
+     * Generates a TileLibrary of PhotoPixels with random average colors.
+     * @param size Number of PhotoPixels
+     * @param scaleFactor The side length, in pixels, of each PhotoPixel
+     * @param seed Picks the colors of the PhotoPixels
+     * @return The filled library
+     */
+    public static TileLibrary library(int size, int scaleFactor, long seed) {
+        TileLibrary library = new TileLibrary(size);
+        for (int i = 0; i < size; i++) {
+            library.add(image(scaleFactor, scaleFactor, seed * 31 + i));
+        }
+        return library;
+    }
+
+    /**
+     * @param resolution Size of an image, written as widthxheight
+     * @return The width
+     */
+    public static int width(String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    /**
+     * @param resolution Size of an image, written as widthxheight
+     * @return The height
+     */
+    public static int height(String resolution) {
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+}
@@ -200,7 +200,7 @@ public class SketchItApp extends Application {
             scaleFactor = Integer.parseInt(scaleFactorField.getText());
             exportFileName = exportFileNameField.getText();
 
-            FrameRender.photoPixels = null;
+            FrameRender.tileLibrary = null;
             FrameRender.pixelPhotoAddresses = null;
 
             if (selectedPhotoPixelFiles.size() > 0 && fileAddress != null && scaleFactor > 0 && !exportFileName.equals("") && exportFolderAddress != null) {
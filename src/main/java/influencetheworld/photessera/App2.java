@@ -66,6 +66,19 @@ public class App2 extends Application {
             setProgressMessage("Operating System Incompatible\n\nOnly Windows and Mac OS Supported");
         }
 
+        FrameRender2.setWorkingFolders(photesseraDirectoryAddress, renderedFrameFolderAddress, rawFrameFolderAddress);
+        RenderProgress.listener = new RenderProgress.Listener() {
+            @Override
+            public void setProgressMessage(String text) {
+                App2.setProgressMessage(text);
+            }
+
+            @Override
+            public void alert(String text) {
+                App2.alert(text);
+            }
+        };
+
         File photesseraDirectory = new File(photesseraDirectoryAddress), tempFolder = new File(tempFolderAddress), renderedFramesFolder = new File(renderedFrameFolderAddress), rawFramesFolder = new File(rawFrameFolderAddress);
         tempFolder.setExecutable(true);
         tempFolder.setWritable(true);
@@ -198,8 +211,7 @@ public class App2 extends Application {
             scaleFactor = Integer.parseInt(scaleFactorField.getText());
             exportFileName = exportFileNameField.getText();
 
-            FrameRender2.photoPixels = null;
-            FrameRender2.pixelPhotoAddresses = null;
+            TileLibraryStore.SHARED.clear();
 
             if (selectedPhotoPixelFiles.size() > 0 && fileAddress != null && scaleFactor > 0 && !exportFileName.equals("") && exportFolderAddress != null) {
                 try {
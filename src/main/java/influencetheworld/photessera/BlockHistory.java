@@ -0,0 +1,122 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which PhotoPixel every block of the last rendered frame of a video
+ * was replaced with, so the next frame only has to match and draw the blocks
+ * that changed. Most blocks of mostly static footage keep their PhotoPixel
+ * from one frame to the next.
+ *
+ * A block keeps its PhotoPixel while each of its average red, green and blue
+ * values is less than the threshold away from the color the PhotoPixel was
+ * matched to, like PhotoPixel.samePhotoPixel. Blocks are compared with the color
+ * they were last matched to rather than with the previous frame, so a block
+ * that changes slowly over many frames is still matched again eventually.
+ *
+ * The frames of a video must be rendered one after another, in order.
+ */
+public class BlockHistory {
+
+    private final int threshold;
+
+    private TileLibrary library;
+    private int columns, rows, scaleFactor;
+    private BufferedImage previousOutput;
+
+    //For each block, the color its PhotoPixel was matched to. The PhotoPixels themselves are kept as drawn in previousOutput
+    private int[] matchedColors_RGB;
+
+    private final AtomicInteger skipped = new AtomicInteger();
+    private long totalBlocks, totalSkipped;
+
+    /**
+     * @param threshold How far any channel of a block's average color may move before its PhotoPixel is matched again. 0 matches every block of every frame
+     */
+    public BlockHistory(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Gets ready to render a frame. If the frame is the same size as the last one and
+     * uses the same PhotoPixels, the last rendered frame is copied onto the output so
+     * unchanged blocks don't have to be drawn. Otherwise every block will be matched.
+     * @param output The image the frame is rendered on
+     * @param columns Number of blocks across the frame
+     * @param rows Number of blocks down the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     */
+    void begin(BufferedImage output, int columns, int rows, int scaleFactor, TileLibrary library) {
+        skipped.set(0);
+        if (library != this.library || columns != this.columns || rows != this.rows || scaleFactor != this.scaleFactor
+                || previousOutput == null || previousOutput.getWidth() != output.getWidth() || previousOutput.getHeight() != output.getHeight()) {
+            reset();
+            this.library = library;
+            this.columns = columns;
+            this.rows = rows;
+            this.scaleFactor = scaleFactor;
+            this.matchedColors_RGB = new int[columns * rows * 3];
+        } else if (previousOutput != output) {
+            output.setData(previousOutput.getRaster());
+        }
+    }
+
+    /**
+     * Finishes rendering a frame and prints how many of its blocks kept their PhotoPixel.
+     * @param output The image the frame was rendered on
+     */
+    void end(BufferedImage output) {
+        int blocks = columns * rows;
+        int skippedBlocks = skipped.get();
+        totalBlocks += blocks;
+        totalSkipped += skippedBlocks;
+        System.out.println(String.format("Reused %d/%d blocks (%.1f%%)", skippedBlocks, blocks, 100.0 * skippedBlocks / Math.max(blocks, 1)));
+        previousOutput = output;
+    }
+
+    /**
+     * Checks whether a block still matches the PhotoPixel drawn for it in the last frame.
+     * Blocks are only ever checked by the band rendering them, so bands can check their blocks at the same time.
+     * @param block Index of the block, counting across each row of blocks
+     * @return true if the block can be left as it is
+     */
+    boolean unchanged(int block, int r, int g, int b) {
+        if (previousOutput == null) return false;
+        int c = block * 3;
+        if (Math.abs(matchedColors_RGB[c] - r) < threshold && Math.abs(matchedColors_RGB[c + 1] - g) < threshold && Math.abs(matchedColors_RGB[c + 2] - b) < threshold) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers the color a block's new PhotoPixel was matched to.
+     * @param block Index of the block, counting across each row of blocks
+     */
+    void matched(int block, int r, int g, int b) {
+        int c = block * 3;
+        matchedColors_RGB[c] = r;
+        matchedColors_RGB[c + 1] = g;
+        matchedColors_RGB[c + 2] = b;
+    }
+
+    /**
+     * Forgets the last frame, so every block of the next frame is matched again.
+     * Must be called after changing how blocks are matched to PhotoPixels.
+     */
+    public void reset() {
+        previousOutput = null;
+        matchedColors_RGB = null;
+        library = null;
+    }
+
+    /**
+     * @return The fraction of blocks of every frame rendered so far which kept their PhotoPixel
+     */
+    public double getSkipRate() {
+        return totalBlocks == 0 ? 0 : (double) totalSkipped / totalBlocks;
+    }
+}
@@ -0,0 +1,264 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Replaces every block of a frame with its matching PhotoPixel. Each block is
+ * analyzed, matched and drawn independently of every other block, so the grid
+ * of blocks is split into bands of rows which are rendered in parallel on a
+ * ForkJoinPool. Every band draws into its own area of the shared output image,
+ * so the result is identical to rendering the blocks one after another.
+ *
+ * Frames of a video can be rendered with a BlockHistory, in which case blocks
+ * that barely changed since the previous frame are left as they were drawn.
+ */
+public class BlockRenderer {
+
+    //Bands with this many rows of blocks or less are not split any further
+    private static final int MIN_ROWS_PER_BAND = 2;
+
+    /**
+     * Matches the average color of a block to a PhotoPixel.
+     */
+    public interface BlockMatcher {
+        /**
+         * @return Index in the TileLibrary of the PhotoPixel that should replace a block of this color
+         */
+        int match(int r, int g, int b);
+    }
+
+    /**
+     * Renders every block of a frame into an output image.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param output The image the PhotoPixels are drawn on, the same size as the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param matcher Picks the PhotoPixel for each block
+     * @param pool Pool the bands are rendered on, or null to render every block on the calling thread
+     */
+    public static void render(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, BlockMatcher matcher, ForkJoinPool pool) {
+        render(frame, output, scaleFactor, library, matcher, null, pool);
+    }
+
+    /**
+     * Renders the blocks of a frame of a video which changed since the previous frame into an output image.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param output The image the PhotoPixels are drawn on, the same size as the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param matcher Picks the PhotoPixel for each block
+     * @param history The blocks of the previous frame, or null to render every block
+     * @param pool Pool the bands are rendered on, or null to render every block on the calling thread
+     */
+    public static void render(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, BlockMatcher matcher, BlockHistory history, ForkJoinPool pool) {
+        render(frame, output, scaleFactor, library, matcher, history, pool, -1);
+    }
+
+    /**
+     * Renders the blocks of a frame of a video which changed since the previous frame into an output image.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param output The image the PhotoPixels are drawn on, the same size as the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param matcher Picks the PhotoPixel for each block
+     * @param history The blocks of the previous frame, or null to render every block
+     * @param pool Pool the bands are rendered on, or null to render every block on the calling thread
+     * @param frameNumber Position of the frame in the video, recorded in the BlockBatch events of its bands
+     */
+    public static void render(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, BlockMatcher matcher, BlockHistory history, ForkJoinPool pool, int frameNumber) {
+        int rows = frame.getHeight() / scaleFactor;
+        if (history != null) history.begin(output, frame.getWidth() / scaleFactor, rows, scaleFactor, library);
+        Band band = new Band(frame, output, scaleFactor, library, matcher, history, frameNumber, 0, rows);
+        if (pool == null) {
+            band.renderRows();
+        } else {
+            pool.invoke(band);
+        }
+        if (history != null) history.end(output);
+    }
+
+    /**
+     * Draws PhotoPixels already picked for every block of a frame into an output image.
+     * @param output The image the PhotoPixels are drawn on
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param tiles Index in the library of the PhotoPixel of each block, row by row
+     * @param columns Number of blocks in each row
+     * @param pool Pool the bands are drawn on, or null to draw every block on the calling thread
+     */
+    public static void draw(BufferedImage output, int scaleFactor, TileLibrary library, int[] tiles, int columns, ForkJoinPool pool) {
+        draw(output, scaleFactor, library, tiles, columns, 0, columns == 0 ? 0 : tiles.length / columns, pool);
+    }
+
+    /**
+     * Draws PhotoPixels already picked for some rows of blocks of a frame into an image of just those rows.
+     * @param output The image the PhotoPixels are drawn on, with firstRow at the top
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param tiles Index in the library of the PhotoPixel of each block of the frame, row by row
+     * @param columns Number of blocks in each row
+     * @param firstRow First row of blocks drawn
+     * @param lastRow Row of blocks after the last one drawn
+     * @param pool Pool the bands are drawn on, or null to draw every block on the calling thread
+     */
+    public static void draw(BufferedImage output, int scaleFactor, TileLibrary library, int[] tiles, int columns, int firstRow, int lastRow, ForkJoinPool pool) {
+        TileBand band = new TileBand(output, scaleFactor, library, tiles, columns, firstRow, firstRow, lastRow);
+        long blitting = RenderMetrics.start();
+        if (pool == null) {
+            band.drawRows();
+        } else {
+            pool.invoke(band);
+        }
+        RenderMetrics.record(RenderStage.BLIT, blitting, (long) (lastRow - firstRow) * columns);
+    }
+
+    /**
+     * A band of rows of blocks, split in half until it is small enough to render directly.
+     */
+    private static class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FrameAnalyzer frame;
+        private final BufferedImage output;
+        private final int scaleFactor;
+        private final TileLibrary library;
+        private final BlockMatcher matcher;
+        private final BlockHistory history;
+        private final int frameNumber;
+        private final int firstRow, lastRow;
+
+        Band(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, BlockMatcher matcher, BlockHistory history, int frameNumber, int firstRow, int lastRow) {
+            this.frame = frame;
+            this.output = output;
+            this.scaleFactor = scaleFactor;
+            this.library = library;
+            this.matcher = matcher;
+            this.history = history;
+            this.frameNumber = frameNumber;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= MIN_ROWS_PER_BAND) {
+                renderRows();
+            } else {
+                int middle = (firstRow + lastRow) >>> 1;
+                invokeAll(new Band(frame, output, scaleFactor, library, matcher, history, frameNumber, firstRow, middle),
+                        new Band(frame, output, scaleFactor, library, matcher, history, frameNumber, middle, lastRow));
+            }
+        }
+
+        void renderRows() {
+            int columns = frame.getWidth() / scaleFactor;
+            int[] color_RGB = new int[3];
+
+            //Time spent in each stage is added up over the band and recorded once, and only read from the clock when metrics are enabled
+            boolean timed = RenderMetrics.isEnabled();
+            long analyzeTime = 0, matchTime = 0, blitTime = 0;
+            int drawn = 0;
+
+            RenderEvents.BlockBatch event = RenderEvents.ENABLED ? new RenderEvents.BlockBatch() : null;
+            if (event != null) event.begin();
+            TileBlitter blitter = library.getBlitter();
+            for (int j = firstRow; j < lastRow; j++) {
+                for (int i = 0; i < columns; i++) {
+                    long analyzed = timed ? System.nanoTime() : 0;
+                    frame.getAverageColor(i * scaleFactor, j * scaleFactor, scaleFactor, scaleFactor, color_RGB);
+
+                    if (history != null) {
+                        int block = j * columns + i;
+                        if (history.unchanged(block, color_RGB[0], color_RGB[1], color_RGB[2])) {
+                            if (timed) analyzeTime += System.nanoTime() - analyzed;
+                            continue;
+                        }
+                        history.matched(block, color_RGB[0], color_RGB[1], color_RGB[2]);
+                    }
+
+                    long matched = timed ? System.nanoTime() : 0;
+                    int index = matcher.match(color_RGB[0], color_RGB[1], color_RGB[2]);
+                    long blitted = timed ? System.nanoTime() : 0;
+                    blitter.draw(output, index, i * scaleFactor, j * scaleFactor);
+                    drawn++;
+                    if (timed) {
+                        analyzeTime += matched - analyzed;
+                        matchTime += blitted - matched;
+                        blitTime += System.nanoTime() - blitted;
+                    }
+                }
+            }
+
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.frameNumber = frameNumber;
+                    event.firstRow = firstRow;
+                    event.lastRow = lastRow;
+                    event.tiles = (lastRow - firstRow) * columns;
+                    event.tilesDrawn = drawn;
+                    event.bytes = (long) drawn * scaleFactor * scaleFactor * output.getColorModel().getPixelSize() / 8;
+                    event.commit();
+                }
+            }
+
+            if (timed) {
+                RenderMetrics.add(RenderStage.ANALYZE, analyzeTime, (lastRow - firstRow) * columns);
+                RenderMetrics.add(RenderStage.MATCH, matchTime, drawn);
+                RenderMetrics.add(RenderStage.BLIT, blitTime, drawn);
+            }
+        }
+    }
+
+    /**
+     * A band of rows of blocks whose PhotoPixels were already picked, split in half until it is small enough to draw directly.
+     */
+    private static class TileBand extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage output;
+        private final int scaleFactor;
+        private final TileLibrary library;
+        private final int[] tiles;
+        private final int columns;
+
+        //Row of blocks drawn at the top of the output
+        private final int topRow;
+        private final int firstRow, lastRow;
+
+        TileBand(BufferedImage output, int scaleFactor, TileLibrary library, int[] tiles, int columns, int topRow, int firstRow, int lastRow) {
+            this.output = output;
+            this.scaleFactor = scaleFactor;
+            this.library = library;
+            this.tiles = tiles;
+            this.columns = columns;
+            this.topRow = topRow;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= MIN_ROWS_PER_BAND) {
+                drawRows();
+            } else {
+                int middle = (firstRow + lastRow) >>> 1;
+                invokeAll(new TileBand(output, scaleFactor, library, tiles, columns, topRow, firstRow, middle),
+                        new TileBand(output, scaleFactor, library, tiles, columns, topRow, middle, lastRow));
+            }
+        }
+
+        void drawRows() {
+            TileBlitter blitter = library.getBlitter();
+            for (int j = firstRow; j < lastRow; j++) {
+                for (int i = 0; i < columns; i++) {
+                    blitter.draw(output, tiles[j * columns + i], i * scaleFactor, (j - topRow) * scaleFactor);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package influencetheworld.photessera;
+
+import java.util.stream.IntStream;
+
+/**
+ * A precomputed lookup table which divides the RGB color space into a cube of
+ * cells and records, for every cell, the PhotoPixel which best matches it.
+ * Once built, matching a block of the frame is a single array load instead of
+ * a search.
+ *
+ * Cells whose eight corners do not all match the same PhotoPixel straddle a
+ * boundary between two PhotoPixels. Those cells are flagged so the exact
+ * lookup can fall back to the PhotoPixelTree for them. Every other cell is
+ * guaranteed to match the same PhotoPixel as the tree for every color inside it,
+ * since the set of colors closest to one PhotoPixel is convex.
+ */
+public class ColorCube {
+
+    public static final int DEFAULT_BITS_PER_CHANNEL = 6;
+
+    private final PhotoPixelTree tree;
+    private final int bitsPerChannel;
+    private final int shift;
+
+    /*
+    Index of the PhotoPixel matching each cell. Cells on a boundary between
+    PhotoPixels store the bitwise complement of the index of the PhotoPixel
+    matching the center of the cell, which makes them negative.
+    */
+    private final int[] cells;
+
+    /**
+     * Constructor for the ColorCube. Builds every cell of the cube in parallel.
+     * @param tree Tree over the PhotoPixels the cube will be matching against
+     * @param bitsPerChannel Number of bits of each color channel used to pick a cell, from 1 to 8. 6 results in a 64 x 64 x 64 cube.
+     */
+    public ColorCube(PhotoPixelTree tree, int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("Bits per channel must be between 1 and 8: " + bitsPerChannel);
+        }
+        this.tree = tree;
+        this.bitsPerChannel = bitsPerChannel;
+        this.shift = 8 - bitsPerChannel;
+
+        final int resolution = 1 << bitsPerChannel;
+        this.cells = new int[resolution * resolution * resolution];
+
+        //Each task fills one row of cells along the blue axis
+        IntStream.range(0, resolution * resolution).parallel().forEach(row -> {
+            int r = row >> bitsPerChannel;
+            int g = row & (resolution - 1);
+            for (int b = 0; b < resolution; b++) {
+                cells[(row << bitsPerChannel) | b] = buildCell(r, g, b);
+            }
+        });
+    }
+
+    /**
+     * @return Number of bits of each color channel used to pick a cell.
+     */
+    public int getBitsPerChannel() {
+        return bitsPerChannel;
+    }
+
+    /**
+     * @return The tree the cube was built from.
+     */
+    public PhotoPixelTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Gets the PhotoPixel matching the cell a color falls in. For cells on a
+     * boundary this is the PhotoPixel matching the center of the cell, which
+     * may not be the closest PhotoPixel to the color itself.
+     * @return Index of the matching PhotoPixel
+     */
+    public int nearest(int r, int g, int b) {
+        int cell = cells[cellIndex(r, g, b)];
+        return cell < 0 ? ~cell : cell;
+    }
+
+    /**
+     * Gets the PhotoPixel closest to a color, searching the tree only when the
+     * color falls in a cell on a boundary between PhotoPixels. Always returns
+     * the same index as PhotoPixelTree.nearest.
+     * @return Index of the closest PhotoPixel
+     */
+    public int nearestExact(int r, int g, int b) {
+        int cell = cells[cellIndex(r, g, b)];
+        return cell < 0 ? tree.nearest(r, g, b) : cell;
+    }
+
+    /**
+     * @return The fraction of cells that lie on a boundary between PhotoPixels.
+     */
+    public double getBoundaryFraction() {
+        int boundary = 0;
+        for (int cell : cells) {
+            if (cell < 0) boundary++;
+        }
+        return (double) boundary / cells.length;
+    }
+
+    private int cellIndex(int r, int g, int b) {
+        return ((((r >> shift) << bitsPerChannel) | (g >> shift)) << bitsPerChannel) | (b >> shift);
+    }
+
+    /**
+     * Finds the PhotoPixel matching a single cell by checking its corners.
+     */
+    private int buildCell(int r, int g, int b) {
+        int step = 1 << shift;
+        int r0 = r * step, g0 = g * step, b0 = b * step;
+        int r1 = r0 + step - 1, g1 = g0 + step - 1, b1 = b0 + step - 1;
+
+        int match = tree.nearest(r0, g0, b0);
+        if (step == 1) return match;
+
+        if (tree.nearest(r1, g0, b0) != match || tree.nearest(r0, g1, b0) != match || tree.nearest(r1, g1, b0) != match
+                || tree.nearest(r0, g0, b1) != match || tree.nearest(r1, g0, b1) != match || tree.nearest(r0, g1, b1) != match
+                || tree.nearest(r1, g1, b1) != match) {
+            return ~tree.nearest((r0 + r1) / 2, (g0 + g1) / 2, (b0 + b1) / 2);
+        }
+        return match;
+    }
+}
@@ -0,0 +1,319 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Matches blocks to PhotoPixels by color while limiting how often a
+ * PhotoPixel can repeat. Each PhotoPixel can be used at most maxUses times in
+ * a frame, and two blocks given the same PhotoPixel must be at least
+ * minDistance blocks apart horizontally or vertically, so a flat area of the
+ * frame is filled with several similar photos instead of one photo repeated.
+ *
+ * Finding the assignment with the lowest total distance is far too slow for
+ * frames of 100k blocks and libraries of 50k PhotoPixels, so it is solved
+ * greedily in priority order instead. Blocks are sorted by how close their
+ * best PhotoPixel is with a counting sort, and taken closest first like from
+ * a priority queue. Each block gets the closest PhotoPixel it is still
+ * allowed to use, found in the library's PhotoPixelTree with the PhotoPixels
+ * which reached maxUses removed, so a block costs at most one search however
+ * many PhotoPixels are used up, and blocks of similar colors share searches.
+ *
+ * If the library is too small to fill the frame with maxUses of each
+ * PhotoPixel, maxUses is raised until it can. If a block can't get any
+ * PhotoPixel far enough from its copies, it gets the closest PhotoPixel which
+ * hasn't reached maxUses.
+ */
+public class ConstrainedMatcher {
+
+    //Blocks whose colors fall in the same cell, with this many bits per channel, share the PhotoPixels found by one search
+    private static final int CELL_BITS_PER_CHANNEL = 5;
+
+    //PhotoPixels found by the first search of a cell. Later searches find twice as many as the blocks the last one served, up to MAX_CANDIDATES
+    private static final int FIRST_CANDIDATES = 16;
+    private static final int MAX_CANDIDATES = 512;
+
+    //Multiplies the PhotoPixels searched for while all of them are too close to a copy of themselves
+    private static final int CANDIDATE_GROWTH = 4;
+
+    //Largest squared distance between two colors
+    private static final int MAX_COST = 3 * 255 * 255;
+
+    /**
+     * Picks the PhotoPixel of every block of a frame.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param maxUses Most blocks one PhotoPixel may be used for, or 0 for no limit
+     * @param minDistance Fewest blocks between two uses of the same PhotoPixel, or 0 for no limit
+     * @return Index in the library of the PhotoPixel of each block, row by row
+     */
+    public static int[] assign(FrameAnalyzer frame, int scaleFactor, TileLibrary library, int maxUses, int minDistance) {
+        int columns = frame.getWidth() / scaleFactor, rows = frame.getHeight() / scaleFactor;
+        int blocks = columns * rows;
+
+        long analyzing = RenderMetrics.start();
+        int[] red = new int[blocks], green = new int[blocks], blue = new int[blocks];
+        int[] color_RGB = new int[3];
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++) {
+                frame.getAverageColor(i * scaleFactor, j * scaleFactor, scaleFactor, scaleFactor, color_RGB);
+                red[j * columns + i] = color_RGB[0];
+                green[j * columns + i] = color_RGB[1];
+                blue[j * columns + i] = color_RGB[2];
+            }
+        }
+        RenderMetrics.record(RenderStage.ANALYZE, analyzing, blocks);
+        return assign(red, green, blue, columns, library, maxUses, minDistance);
+    }
+
+    /**
+     * Picks the PhotoPixel of every block of a frame from the average colors of the blocks.
+     * @param red Average red value of each block, row by row
+     * @param green Average green value of each block
+     * @param blue Average blue value of each block
+     * @param columns Number of blocks in each row
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param maxUses Most blocks one PhotoPixel may be used for, or 0 for no limit
+     * @param minDistance Fewest blocks between two uses of the same PhotoPixel, or 0 for no limit
+     * @return Index in the library of the PhotoPixel of each block, row by row
+     */
+    public static int[] assign(int[] red, int[] green, int[] blue, int columns, TileLibrary library, int maxUses, int minDistance) {
+        int blocks = red.length;
+        int rows = columns == 0 ? 0 : blocks / columns;
+        if (library.size() == 0) throw new IllegalArgumentException("There are no PhotoPixels to match blocks to");
+
+        long matching = RenderMetrics.start();
+        PhotoPixelTree tree = library.getTree();
+        Assignment assignment = new Assignment(columns, rows, library, maxUses, minDistance);
+
+        //Blocks with the closest best PhotoPixel are matched first
+        int[] indices = new int[1];
+        long[] distances = new long[1];
+        int[] costs = new int[blocks];
+        for (int block = 0; block < blocks; block++) {
+            tree.nearest(red[block], green[block], blue[block], 1, indices, distances);
+            costs[block] = (int) distances[0];
+        }
+        int[] order = sortByCost(costs);
+
+        Candidates[] cells = new Candidates[1 << (3 * CELL_BITS_PER_CHANNEL)];
+        for (int block : order) {
+            assignment.use(block, closestAllowed(assignment, library, cells, red[block], green[block], blue[block], block));
+        }
+        RenderMetrics.record(RenderStage.MATCH, matching, blocks);
+        return assignment.tiles;
+    }
+
+    /**
+     * Renders every block of a frame into an output image, limiting how often a PhotoPixel repeats.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param output The image the PhotoPixels are drawn on, the same size as the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param maxUses Most blocks one PhotoPixel may be used for, or 0 for no limit
+     * @param minDistance Fewest blocks between two uses of the same PhotoPixel, or 0 for no limit
+     * @param pool Pool the PhotoPixels are drawn on, or null to draw them on the calling thread
+     */
+    public static void render(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, int maxUses, int minDistance, ForkJoinPool pool) {
+        int[] tiles = assign(frame, scaleFactor, library, maxUses, minDistance);
+        BlockRenderer.draw(output, scaleFactor, library, tiles, frame.getWidth() / scaleFactor, pool);
+    }
+
+    /**
+     * Counting sort of the blocks by cost. Blocks with the same cost stay in reading order.
+     * @return The blocks, lowest cost first
+     */
+    private static int[] sortByCost(int[] costs) {
+        int[] starts = new int[MAX_COST + 2];
+        for (int cost : costs) {
+            starts[cost + 1]++;
+        }
+        for (int cost = 0; cost <= MAX_COST; cost++) {
+            starts[cost + 1] += starts[cost];
+        }
+        int[] order = new int[costs.length];
+        for (int block = 0; block < costs.length; block++) {
+            order[starts[costs[block]]++] = block;
+        }
+        return order;
+    }
+
+    /**
+     * Finds the closest PhotoPixel a block is allowed to use, reusing the last search for a color in the same cell when it can.
+     * @param cells The last search for each cell of colors, or null for cells which haven't been searched
+     * @return The closest allowed PhotoPixel, or the closest which hasn't reached maxUses if none are far enough from their copies
+     */
+    private static int closestAllowed(Assignment assignment, TileLibrary library, Candidates[] cells, int r, int g, int b, int block) {
+        int shift = 8 - CELL_BITS_PER_CHANNEL;
+        int cell = (((r >> shift) << CELL_BITS_PER_CHANNEL) | (g >> shift)) << CELL_BITS_PER_CHANNEL | (b >> shift);
+        int k = FIRST_CANDIDATES;
+        if (cells[cell] != null) {
+            int tile = cells[cell].closestAllowed(assignment, library, r, g, b, block);
+            if (tile >= 0) return tile;
+            //Flat areas use up their PhotoPixels quickly, so they search for more at once
+            k = Math.max(FIRST_CANDIDATES, Math.min(cells[cell].served * 2, MAX_CANDIDATES));
+        }
+
+        //Fewer PhotoPixels than there are blocks around a block can be too close to a copy of themselves
+        int mostBlocked = assignment.blocksAround();
+        while (true) {
+            Candidates candidates = new Candidates(assignment, r, g, b, k);
+            cells[cell] = candidates;
+            int tile = candidates.closestAllowed(assignment, library, r, g, b, block);
+            if (tile >= 0) return tile;
+            if (candidates.found < k || k >= mostBlocked) return candidates.tiles[0];
+            k = (int) Math.min((long) k * CANDIDATE_GROWTH, mostBlocked);
+        }
+    }
+
+    /**
+     * The closest PhotoPixels to a color which hadn't reached maxUses when they
+     * were searched for. They stay the closest PhotoPixels left to any color
+     * near it, as long as they aren't used up, so the search is shared by the
+     * blocks of a flat area instead of repeated for each of them.
+     */
+    private static class Candidates {
+
+        private final int r, g, b;
+        final int[] tiles;
+        final int found;
+
+        //Blocks given one of the PhotoPixels
+        int served;
+
+        //Every PhotoPixel left which isn't in tiles is at least this far from the color
+        private final double reach;
+
+        Candidates(Assignment assignment, int r, int g, int b, int k) {
+            this.r = r;
+            this.g = g;
+            this.b = b;
+            this.tiles = new int[k];
+            long[] distances = new long[k];
+            this.found = assignment.nearest(r, g, b, k, tiles, distances);
+            this.reach = found < k ? Double.POSITIVE_INFINITY : Math.sqrt(distances[k - 1]);
+        }
+
+        /**
+         * @return The closest PhotoPixel a block of a color is allowed to use, or -1 if a PhotoPixel which wasn't found could be closer
+         */
+        int closestAllowed(Assignment assignment, TileLibrary library, int r, int g, int b, int block) {
+            int best = -1;
+            long bestCost = Long.MAX_VALUE;
+            for (int c = 0; c < found; c++) {
+                int tile = tiles[c];
+                if (assignment.usedUp(tile)) continue;
+                long dr = r - library.getRed(tile), dg = g - library.getGreen(tile), db = b - library.getBlue(tile);
+                long cost = dr * dr + dg * dg + db * db;
+                if (cost < bestCost && assignment.farFromCopies(block, tile)) {
+                    bestCost = cost;
+                    best = tile;
+                }
+            }
+            if (best < 0) return -1;
+
+            //By the triangle inequality, PhotoPixels outside the search are at least reach - offset from the block's color
+            long dr = r - this.r, dg = g - this.g, db = b - this.b;
+            double offset = Math.sqrt(dr * dr + dg * dg + db * db);
+            if (Math.sqrt(bestCost) > reach - offset) return -1;
+            served++;
+            return best;
+        }
+    }
+
+    /**
+     * The PhotoPixels given to the blocks of a frame so far, and how often and where each PhotoPixel was used.
+     */
+    private static class Assignment {
+
+        private final int columns, rows;
+        private final int maxUses, minDistance;
+
+        //PhotoPixel of each block, or -1 until it is matched
+        final int[] tiles;
+
+        private final int[] uses;
+
+        //The blocks using each PhotoPixel, as a linked list starting at firstUse and continuing through nextUse
+        private final int[] firstUse;
+        private final int[] nextUse;
+
+        //The library's PhotoPixelTree, with the PhotoPixels which reached maxUses removed if there is a limit
+        private final PhotoPixelTree tree;
+        private final PhotoPixelTree.Removals removals;
+
+        Assignment(int columns, int rows, TileLibrary library, int maxUses, int minDistance) {
+            int blocks = columns * rows;
+            int size = library.size();
+            this.columns = columns;
+            this.rows = rows;
+            //Enough uses of each PhotoPixel to fill every block
+            int fewestUses = (int) ((blocks + (long) size - 1) / size);
+            this.maxUses = maxUses <= 0 ? Integer.MAX_VALUE : Math.max(maxUses, fewestUses);
+            this.minDistance = minDistance;
+            this.tiles = new int[blocks];
+            this.uses = new int[size];
+            this.firstUse = new int[size];
+            this.nextUse = new int[blocks];
+            Arrays.fill(tiles, -1);
+            Arrays.fill(firstUse, -1);
+            this.tree = library.getTree();
+            this.removals = maxUses > 0 ? new PhotoPixelTree.Removals(tree) : null;
+        }
+
+        /**
+         * Finds the k closest PhotoPixels to a color which haven't reached maxUses.
+         * @return The number of PhotoPixels found, which is k unless fewer are left
+         */
+        int nearest(int r, int g, int b, int k, int[] tiles, long[] distances) {
+            return tree.nearest(r, g, b, k, tiles, distances, removals);
+        }
+
+        boolean usedUp(int tile) {
+            return uses[tile] >= maxUses;
+        }
+
+        /**
+         * @return Number of blocks within minDistance of a block, counting itself
+         */
+        int blocksAround() {
+            if (minDistance <= 1) return 1;
+            long side = 2L * minDistance - 1;
+            return (int) Math.min(side * side, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return Whether no block closer than minDistance to a block already uses a PhotoPixel
+         */
+        boolean farFromCopies(int block, int tile) {
+            if (minDistance <= 1) return true;
+            int x = block % columns, y = block / columns;
+            int reach = minDistance - 1;
+
+            //Walk the PhotoPixel's uses when there are fewer of them than blocks around the block
+            long window = (2L * reach + 1) * (2L * reach + 1);
+            if (uses[tile] < window) {
+                for (int other = firstUse[tile]; other >= 0; other = nextUse[other]) {
+                    if (Math.abs(other % columns - x) <= reach && Math.abs(other / columns - y) <= reach) return false;
+                }
+                return true;
+            }
+
+            for (int j = Math.max(0, y - reach); j <= Math.min(rows - 1, y + reach); j++) {
+                for (int i = Math.max(0, x - reach); i <= Math.min(columns - 1, x + reach); i++) {
+                    if (tiles[j * columns + i] == tile) return false;
+                }
+            }
+            return true;
+        }
+
+        void use(int block, int tile) {
+            tiles[block] = tile;
+            if (++uses[tile] == maxUses && removals != null) removals.remove(tile);
+            nextUse[block] = firstUse[tile];
+            firstUse[tile] = block;
+        }
+    }
+}
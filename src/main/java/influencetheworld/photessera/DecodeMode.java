@@ -0,0 +1,13 @@
+package influencetheworld.photessera;
+
+/**
+ * The ways the frames of a video can be read.
+ */
+public enum DecodeMode {
+
+    /** Seeks to every frame by its number before grabbing it. Can seek back to the previous keyframe on every frame. */
+    SEEK,
+
+    /** Reads every frame once, in order, placing frames by their timestamps to handle variable frame rates and dropped frames. */
+    SEQUENTIAL
+}
@@ -0,0 +1,237 @@
+package influencetheworld.photessera;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exports a render as a Deep Zoom image, the tile pyramid zoomable web
+ * viewers such as OpenSeadragon load: a .dzi file describing the image and a
+ * _files folder with a folder of jpg tiles for every level of the pyramid.
+ *
+ * The pyramid is built straight from the PhotoPixel picked for every block,
+ * so the render is never drawn as one image. Tiles of the deepest level are
+ * drawn from the PhotoPixels of the blocks they cover, and every tile above
+ * that is averaged down from the four tiles below it. The pyramid is built
+ * depth first as a tree of tasks on a ForkJoinPool, so only the tiles of the
+ * branches being built are held in memory.
+ */
+public class DeepZoomExporter {
+
+    private static final String FORMAT = "jpg";
+
+    private final TileLibrary library;
+    private final int[] tiles;
+    private final int columns, scaleFactor, tileSize;
+    private final int width, height;
+    private final String filesFolder;
+
+    //Level of the full resolution render, and the highest level whose tiles are built from the level below by tasks
+    private final int maxLevel, rootLevel;
+
+    private final boolean forking;
+
+    private DeepZoomExporter(TileLibrary library, int[] tiles, int columns, int rows, int scaleFactor, int tileSize, String filesFolder, boolean forking) {
+        this.library = library;
+        this.tiles = tiles;
+        this.columns = columns;
+        this.scaleFactor = scaleFactor;
+        this.tileSize = tileSize;
+        this.width = columns * scaleFactor;
+        this.height = rows * scaleFactor;
+        this.filesFolder = filesFolder;
+        this.forking = forking;
+
+        //Level n is 2^n pixels across at its widest, so the render is the level rounding its size up to a power of 2
+        this.maxLevel = 32 - Integer.numberOfLeadingZeros(Math.max(width, height) - 1);
+        int level = maxLevel;
+        while (level > 0 && (getLevelWidth(level) > tileSize || getLevelHeight(level) > tileSize)) level--;
+        this.rootLevel = level;
+    }
+
+    /**
+     * Exports a render as a Deep Zoom image.
+     * @param library The PhotoPixels the render is made of
+     * @param tiles Index in the library of the PhotoPixel of each block, row by row
+     * @param columns Number of blocks in each row
+     * @param rows Number of rows of blocks
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param tileSize The side length, in pixels, of the tiles of the pyramid
+     * @param address Absolute path of the .dzi file, without its extension. The tiles are saved in a folder next to it named after it
+     * @param pool Pool the tiles are built on, or null to build them all on the calling thread
+     * @throws IOException
+     */
+    public static void export(TileLibrary library, int[] tiles, int columns, int rows, int scaleFactor, int tileSize, String address, ForkJoinPool pool) throws IOException {
+        if (columns <= 0 || rows <= 0) throw new IllegalArgumentException("Can't export a render of " + columns + " x " + rows + " blocks");
+        //Every pixel of a tile covers two pixels of the level below, which would straddle two tiles of odd sizes
+        if (tileSize <= 0 || tileSize % 2 != 0) throw new IllegalArgumentException("Tiles must be an even number of pixels across, not " + tileSize);
+        DeepZoomExporter exporter = new DeepZoomExporter(library, tiles, columns, rows, scaleFactor, tileSize, address + "_files", pool != null);
+        for (int level = 0; level <= exporter.maxLevel; level++) {
+            File folder = new File(exporter.filesFolder, Integer.toString(level));
+            if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Can't create " + folder);
+        }
+
+        //Every tile from the root level down is built by the tree of tasks, and the levels above it are each a single tile
+        PyramidTile root = exporter.new PyramidTile(exporter.rootLevel, 0, 0);
+        BufferedImage tile;
+        try {
+            tile = pool == null ? root.compute() : pool.invoke(root);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (int level = exporter.rootLevel - 1; level >= 0; level--) {
+            tile = exporter.shrink(new BufferedImage[] {tile, null, null, null}, level, 0, 0);
+            exporter.save(tile, level, 0, 0);
+        }
+
+        String descriptor = String.join("\n",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+                "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + FORMAT + "\" Overlap=\"0\" TileSize=\"" + tileSize + "\">",
+                "  <Size Width=\"" + exporter.width + "\" Height=\"" + exporter.height + "\"/>",
+                "</Image>",
+                "");
+        Files.write(new File(address + ".dzi").toPath(), descriptor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int getLevelWidth(int level) {
+        return ((width - 1) >> (maxLevel - level)) + 1;
+    }
+
+    private int getLevelHeight(int level) {
+        return ((height - 1) >> (maxLevel - level)) + 1;
+    }
+
+    /**
+     * Draws a tile of the deepest level from the PhotoPixels of the blocks it covers.
+     */
+    private BufferedImage draw(int column, int row) {
+        long blitting = RenderMetrics.start();
+        int left = column * tileSize, top = row * tileSize;
+        BufferedImage tile = new BufferedImage(Math.min(tileSize, width - left), Math.min(tileSize, height - top), BufferedImage.TYPE_INT_RGB);
+        int firstColumn = left / scaleFactor, lastColumn = (left + tile.getWidth() - 1) / scaleFactor;
+        int firstRow = top / scaleFactor, lastRow = (top + tile.getHeight() - 1) / scaleFactor;
+        TileBlitter blitter = library.getBlitter();
+        for (int j = firstRow; j <= lastRow; j++) {
+            for (int i = firstColumn; i <= lastColumn; i++) {
+                blitter.draw(tile, tiles[j * columns + i], i * scaleFactor - left, j * scaleFactor - top);
+            }
+        }
+        RenderMetrics.record(RenderStage.BLIT, blitting, (long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1));
+        return tile;
+    }
+
+    /**
+     * Averages the four tiles below a tile down to half their size.
+     * @param children The top left, top right, bottom left and bottom right tiles of the level below, or null where the level below has no tile
+     * @param level Level of the tile being built
+     * @param column Column of the tile being built
+     * @param row Row of the tile being built
+     * @return The tile
+     */
+    private BufferedImage shrink(BufferedImage[] children, int level, int column, int row) {
+        int tileWidth = Math.min(tileSize, getLevelWidth(level) - column * tileSize);
+        int tileHeight = Math.min(tileSize, getLevelHeight(level) - row * tileSize);
+        BufferedImage tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < tileHeight; y++) {
+            for (int x = 0; x < tileWidth; x++) {
+                //The pixels of the level below this pixel covers, some of which may lie past the edge of the image
+                int childX = 2 * x, childY = 2 * y;
+                int quarter = 0;
+                if (childX >= tileSize) {
+                    childX -= tileSize;
+                    quarter += 1;
+                }
+                if (childY >= tileSize) {
+                    childY -= tileSize;
+                    quarter += 2;
+                }
+                BufferedImage child = children[quarter];
+                int[] childPixels = ((DataBufferInt) child.getRaster().getDataBuffer()).getData();
+                int childWidth = child.getWidth();
+                int right = Math.min(childX + 2, childWidth), bottom = Math.min(childY + 2, child.getHeight());
+
+                int red = 0, green = 0, blue = 0, count = 0;
+                for (int cy = childY; cy < bottom; cy++) {
+                    for (int cx = childX; cx < right; cx++) {
+                        int rgb = childPixels[cy * childWidth + cx];
+                        red += (rgb >> 16) & 0xFF;
+                        green += (rgb >> 8) & 0xFF;
+                        blue += rgb & 0xFF;
+                        count++;
+                    }
+                }
+                pixels[y * tileWidth + x] = ((red / count) << 16) | ((green / count) << 8) | (blue / count);
+            }
+        }
+        return tile;
+    }
+
+    private void save(BufferedImage tile, int level, int column, int row) throws IOException {
+        long writing = RenderMetrics.start();
+        File file = new File(filesFolder + File.separator + level, column + "_" + row + "." + FORMAT);
+        if (!ImageIO.write(tile, FORMAT, file)) throw new IOException("No ImageWriter can write " + file);
+        RenderMetrics.record(RenderStage.WRITE, writing, 1);
+    }
+
+    /**
+     * Builds and saves a tile of the pyramid and every tile below it, returning the tile so it can be averaged into the tile above.
+     */
+    private class PyramidTile extends RecursiveTask<BufferedImage> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int level, column, row;
+
+        PyramidTile(int level, int column, int row) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        protected BufferedImage compute() {
+            BufferedImage tile;
+            if (level == maxLevel) {
+                tile = draw(column, row);
+            } else {
+                //Tiles of the level below past the edge of the image don't exist
+                PyramidTile[] children = new PyramidTile[4];
+                int childColumns = (getLevelWidth(level + 1) - 1) / tileSize + 1, childRows = (getLevelHeight(level + 1) - 1) / tileSize + 1;
+                for (int quarter = 0; quarter < 4; quarter++) {
+                    int childColumn = 2 * column + (quarter & 1), childRow = 2 * row + (quarter >> 1);
+                    if (childColumn < childColumns && childRow < childRows) children[quarter] = new PyramidTile(level + 1, childColumn, childRow);
+                }
+
+                BufferedImage[] childTiles = new BufferedImage[4];
+                if (forking) {
+                    invokeAll(Arrays.stream(children).filter(child -> child != null).toArray(PyramidTile[]::new));
+                    for (int quarter = 0; quarter < 4; quarter++) {
+                        if (children[quarter] != null) childTiles[quarter] = children[quarter].join();
+                    }
+                } else {
+                    for (int quarter = 0; quarter < 4; quarter++) {
+                        if (children[quarter] != null) childTiles[quarter] = children[quarter].compute();
+                    }
+                }
+                tile = shrink(childTiles, level, column, row);
+            }
+
+            try {
+                save(tile, level, column, row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return tile;
+        }
+    }
+}
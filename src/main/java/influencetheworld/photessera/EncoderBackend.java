@@ -0,0 +1,13 @@
+package influencetheworld.photessera;
+
+/**
+ * The encoders rendered videos can be written with.
+ */
+public enum EncoderBackend {
+
+    /** FFmpeg's native encoders through javacv's FFmpegFrameRecorder. Multithreaded, with a configurable codec and quality. */
+    FFMPEG,
+
+    /** jcodec's pure Java H.264 encoder. Single threaded, and the frame rate is rounded to a whole number. */
+    JCODEC
+}
@@ -0,0 +1,98 @@
+package influencetheworld.photessera;
+
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * FrameEncoder which writes a video using FFmpeg's native encoders. Encoders
+ * such as libx264 split every frame across several threads, which makes this
+ * much faster than jcodec's encoder for large frames.
+ *
+ * The recorder is only started once the first frame arrives, since the size
+ * of the video is taken from the frames.
+ */
+public class FFmpegFrameEncoder implements FrameEncoder {
+
+    private final String videoAddress;
+    private final double fps;
+    private final String codecName;
+    private final int crf, bitrate, threads;
+
+    private final Java2DFrameConverter converter = new Java2DFrameConverter();
+    private FFmpegFrameRecorder recorder;
+    private boolean finished;
+
+    /**
+     * @param videoAddress Absolute path of the video being written. The container is picked from its extension
+     * @param fps Frame rate of the video. FFmpeg turns it back into a fraction, so rates like 30000/1001 are kept exactly
+     * @param codecName Name of the FFmpeg encoder, such as libx264 or libx265
+     * @param crf Constant rate factor, lower being better quality. Only used when the bitrate is 0
+     * @param bitrate Target bitrate in bits per second, or 0 to encode with a constant rate factor instead
+     * @param threads Number of threads the encoder uses, or 0 to let FFmpeg decide
+     */
+    public FFmpegFrameEncoder(String videoAddress, double fps, String codecName, int crf, int bitrate, int threads) {
+        this.videoAddress = videoAddress;
+        this.fps = fps;
+        this.codecName = codecName;
+        this.crf = crf;
+        this.bitrate = bitrate;
+        this.threads = threads;
+    }
+
+    @Override
+    public void encode(BufferedImage frame) throws IOException {
+        if (recorder == null) {
+            start(frame.getWidth(), frame.getHeight());
+        }
+        recorder.record(converter.convert(frame));
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (recorder == null) return;
+        try {
+            recorder.stop();
+            finished = true;
+        } finally {
+            recorder.release();
+            recorder = null;
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (finished) return;
+        if (recorder != null) {
+            //Releasing without stopping closes the file without writing the rest of the container
+            try {
+                recorder.release();
+            } catch (FrameRecorder.Exception e) {
+                System.out.println("Unable to release the encoder of " + videoAddress + ": " + e);
+            }
+            recorder = null;
+        }
+        new File(videoAddress).delete();
+    }
+
+    private void start(int width, int height) throws FrameRecorder.Exception {
+        recorder = new FFmpegFrameRecorder(videoAddress, width, height, 0);
+        recorder.setVideoCodecName(codecName);
+        recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        recorder.setFrameRate(fps);
+        if (bitrate > 0) {
+            recorder.setVideoBitrate(bitrate);
+        } else {
+            //The recorder asks for 400 kb/s unless told otherwise, which would fight with the constant rate factor
+            recorder.setVideoBitrate(0);
+            recorder.setVideoOption("crf", Integer.toString(crf));
+        }
+        recorder.setVideoOption("threads", Integer.toString(threads));
+        recorder.start();
+    }
+}
@@ -0,0 +1,137 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Analyzes a frame once so the average color of any block, at any block size,
+ * can be found in constant time without creating any objects.
+ *
+ * A PhotoPixel only analyzes every other pixel of its image in a checkerboard
+ * pattern. Which squares of the checkerboard are analyzed depends on where the
+ * block starts, so a summed-area table is kept for each color channel and for
+ * each of the two squares of the checkerboard. The averages returned are
+ * exactly those PhotoPixel.getAverageColor would calculate for the same block.
+ *
+ * TYPE_3BYTE_BGR and TYPE_INT_RGB frames are read straight from their
+ * DataBuffer. Frames of any other type are read a row at a time through getRGB.
+ */
+public class FrameAnalyzer {
+
+    private final int width, height;
+
+    //Width of a row of a summed-area table, which has an extra row and column of zeros
+    private final int stride;
+
+    /*
+    Summed-area tables of each channel. The table for pixels where x + y is even
+    comes first, followed by the table for pixels where x + y is odd. Sums are
+    allowed to overflow since the sum of any one block always fits in an int,
+    and the wrapped differences still come out correct.
+    */
+    private final int[] red, green, blue;
+
+    /**
+     * Constructor for the FrameAnalyzer. Reads every pixel of the frame once.
+     * @param frame The frame being analyzed
+     */
+    public FrameAnalyzer(BufferedImage frame) {
+        this.width = frame.getWidth();
+        this.height = frame.getHeight();
+        this.stride = width + 1;
+        int tableSize = stride * (height + 1);
+        this.red = new int[2 * tableSize];
+        this.green = new int[2 * tableSize];
+        this.blue = new int[2 * tableSize];
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            readRow(frame, y, row);
+
+            //Running sums of the current row for each square of the checkerboard
+            int rowRed0 = 0, rowGreen0 = 0, rowBlue0 = 0, rowRed1 = 0, rowGreen1 = 0, rowBlue1 = 0;
+            int above = y * stride + 1;
+            int here = above + stride;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                if (((x + y) & 1) == 0) {
+                    rowRed0 += (rgb >> 16) & 0xFF;
+                    rowGreen0 += (rgb >> 8) & 0xFF;
+                    rowBlue0 += rgb & 0xFF;
+                } else {
+                    rowRed1 += (rgb >> 16) & 0xFF;
+                    rowGreen1 += (rgb >> 8) & 0xFF;
+                    rowBlue1 += rgb & 0xFF;
+                }
+                red[here + x] = red[above + x] + rowRed0;
+                green[here + x] = green[above + x] + rowGreen0;
+                blue[here + x] = blue[above + x] + rowBlue0;
+                red[tableSize + here + x] = red[tableSize + above + x] + rowRed1;
+                green[tableSize + here + x] = green[tableSize + above + x] + rowGreen1;
+                blue[tableSize + here + x] = blue[tableSize + above + x] + rowBlue1;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Calculates the average color of an area of the frame the same way a PhotoPixel analyzes its image.
+     * @param x X coordinate of the top left corner of the area
+     * @param y Y coordinate of the top left corner of the area
+     * @param width Width of the area
+     * @param height Height of the area
+     * @param color_RGB Array of length 3 which the average red, green and blue values are written to
+     */
+    public void getAverageColor(int x, int y, int width, int height, int[] color_RGB) {
+        //The pixel at the top left corner of the area is always analyzed
+        int table = ((x + y) & 1) == 0 ? 0 : stride * (this.height + 1);
+        int topLeft = table + y * stride + x;
+        int topRight = topLeft + width;
+        int bottomLeft = topLeft + height * stride;
+        int bottomRight = bottomLeft + width;
+
+        int analyzedPixels = Math.max((width * height) / 2, 1);
+        color_RGB[0] = (red[bottomRight] - red[bottomLeft] - red[topRight] + red[topLeft]) / analyzedPixels;
+        color_RGB[1] = (green[bottomRight] - green[bottomLeft] - green[topRight] + green[topLeft]) / analyzedPixels;
+        color_RGB[2] = (blue[bottomRight] - blue[bottomLeft] - blue[topRight] + blue[topLeft]) / analyzedPixels;
+    }
+
+    /**
+     * Reads a row of the frame as packed RGB values.
+     */
+    private static void readRow(BufferedImage frame, int y, int[] row) {
+        Raster raster = frame.getRaster();
+        int width = row.length;
+        int rasterY = y - raster.getSampleModelTranslateY();
+        int rasterX = -raster.getSampleModelTranslateX();
+
+        if (frame.getType() == BufferedImage.TYPE_3BYTE_BGR && raster.getDataBuffer() instanceof DataBufferByte) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int pixelStride = sampleModel.getPixelStride();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            int offset = raster.getDataBuffer().getOffset() + rasterY * sampleModel.getScanlineStride() + rasterX * pixelStride;
+            for (int x = 0; x < width; x++, offset += pixelStride) {
+                row[x] = ((data[offset + bandOffsets[0]] & 0xFF) << 16) | ((data[offset + bandOffsets[1]] & 0xFF) << 8) | (data[offset + bandOffsets[2]] & 0xFF);
+            }
+        } else if (frame.getType() == BufferedImage.TYPE_INT_RGB && raster.getDataBuffer() instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset() + rasterY * sampleModel.getScanlineStride() + rasterX;
+            System.arraycopy(data, offset, row, 0, width);
+        } else {
+            frame.getRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Writes rendered frames into a video file, one frame after another.
+ */
+public interface FrameEncoder {
+
+    /**
+     * Adds the next frame to the video.
+     * @param frame A rendered frame
+     * @throws IOException
+     */
+    void encode(BufferedImage frame) throws IOException;
+
+    /**
+     * Finishes writing the video. No frames may be encoded afterwards.
+     * @throws IOException
+     */
+    void finish() throws IOException;
+
+    /**
+     * Stops writing the video after the render failed, releasing the encoder and
+     * deleting the unfinished video. Does nothing if the video was already finished.
+     */
+    void abort();
+}
@@ -8,6 +8,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class associated with taking a set of images and a seperate designated
@@ -35,7 +36,14 @@ public class FrameRender {
 
     public static ArrayList<String> pixelPhotoAddresses;
 
-    public static ArrayList<PhotoPixel> photoPixels;
+    public static TileLibrary tileLibrary;
+
+    //How blocks are matched to PhotoPixels, and the resolution of the ColorCube used by the cube modes
+    public static MatchMode matchMode = MatchMode.TREE;
+    public static int colorCubeBitsPerChannel = ColorCube.DEFAULT_BITS_PER_CHANNEL;
+
+    //Pool the blocks of a frame are rendered on. Set to null to render every block on the calling thread
+    public static ForkJoinPool renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
     private static BufferedImage previousFrame;
     private static BufferedImage previousRenderedFrame;
@@ -123,14 +131,14 @@ public class FrameRender {
             this.scaleFactor = SCALE_FACTORS_ALLOWED.get(n);
             System.out.println("PIXEL SCALE FACTOR: " + this.scaleFactor);
 
-            if (photoPixels == null) {
-                photoPixels = new ArrayList<PhotoPixel>();
+            if (tileLibrary == null) {
+                tileLibrary = new TileLibrary(pixelPhotoAddresses.size());
                 int total = pixelPhotoAddresses.size();
                 int num = 0;
                 for (String address : pixelPhotoAddresses) {
-                    PhotoPixel pixel = photoToPixel(address);
+                    BufferedImage pixel = photoToPixel(address);
                     if (pixel != null) {
-                        photoPixels.add(pixel);
+                        tileLibrary.add(pixel);
                         num++;
                     } else {
                         total--;
@@ -189,7 +197,7 @@ public class FrameRender {
      * @return A BufferedImage of the downscaled photo (now a pixel).
      * @throws IOException
      */
-    private PhotoPixel photoToPixel(String photoAddress) throws IOException {
+    private BufferedImage photoToPixel(String photoAddress) throws IOException {
         File file = new File(photoAddress);
         if (file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("jpg") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("png") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("jpeg")) {
             BufferedImage img = null;
@@ -222,40 +230,35 @@ public class FrameRender {
 
             System.out.println(photoAddress + " Installed");
 
-            return new PhotoPixel(after);
+            return after;
         }
         return null;
     }
 
     /**
-     * Finds the PhotoPixel which most resembles the inputted section of the frame
-     * @param framePixel A small, cropped area of the original frame
-     * @return The PhotoPixel which most resembles the inputted framePixel
+     * Finds the PhotoPixel which most resembles a color
+     * @param color_RGB The average red, green and blue values of a small area of the original frame
+     * @return Index in the tileLibrary of the PhotoPixel which most resembles the color
      */
-    private PhotoPixel getMostSimilarPhotoPixel(PhotoPixel framePixel) {
-        double minimum = Double.MAX_VALUE;
-        int minIndex = 0;
-        for (int i = 0; i < photoPixels.size(); i++) {
-            double squareDifference = Math.pow(framePixel.AVG_RED - photoPixels.get(i).AVG_RED, 2) + Math.pow(framePixel.AVG_GREEN - photoPixels.get(i).AVG_GREEN, 2) + Math.pow(framePixel.AVG_BLUE - photoPixels.get(i).AVG_BLUE, 2);
-            if (squareDifference < minimum) {
-                minimum = squareDifference;
-                minIndex = i;
-            }
-        }
-        return photoPixels.get(minIndex);
+    private int getMostSimilarPhotoPixel(int[] color_RGB) {
+        return getMostSimilarPhotoPixel(color_RGB[0], color_RGB[1], color_RGB[2]);
     }
 
-    private PhotoPixel getMostSimilarPhotoPixel(int[] color_RGB) {
-        double minimum = Double.MAX_VALUE;
-        int minIndex = 0;
-        for (int i = 0; i < photoPixels.size(); i++) {
-            double squareDifference = Math.pow(color_RGB[0] - photoPixels.get(i).AVG_RED, 2) + Math.pow(color_RGB[1] - photoPixels.get(i).AVG_GREEN, 2) + Math.pow(color_RGB[2] - photoPixels.get(i).AVG_BLUE, 2);
-            if (squareDifference < minimum) {
-                minimum = squareDifference;
-                minIndex = i;
-            }
+    /**
+     * Finds the PhotoPixel closest to a color using the current matchMode.
+     * @return Index in the tileLibrary of the matching PhotoPixel
+     */
+    private static int getMostSimilarPhotoPixel(int r, int g, int b) {
+        switch (matchMode) {
+            case LINEAR:
+                return tileLibrary.getMostSimilarLinear(r, g, b);
+            case CUBE:
+                return tileLibrary.getColorCube(colorCubeBitsPerChannel).nearest(r, g, b);
+            case CUBE_EXACT:
+                return tileLibrary.getColorCube(colorCubeBitsPerChannel).nearestExact(r, g, b);
+            default:
+                return tileLibrary.getTree().nearest(r, g, b);
         }
-        return photoPixels.get(minIndex);
     }
 
     /**
@@ -263,14 +266,13 @@ public class FrameRender {
      * swapped with one of the selected pictures excluding the last
      * selected image (the last element in the array). For all areas
      * that are white they are all replaced with the last element of
-     * the photoPixel array.
-     * @param framePixel A small, cropped area of the original frame
-     * @return A random photopixel from the selected images, except for when the frame is white in which it is always returned by the last element of the photoPixel array.
+     * the tileLibrary.
+     * @param color_RGB The average red, green and blue values of a small area of the original frame
+     * @return Index of a random photopixel from the selected images, except for when the frame is white in which it is always the last element of the tileLibrary.
      */
-    private PhotoPixel getRandomPhotoPixel(PhotoPixel framePixel) {
-        int index = 0;
-        if (framePixel.AVG_RED >= 250 && framePixel.AVG_RED >= 250 && framePixel.AVG_RED >= 250) return photoPixels.get(photoPixels.size() - 1);
-        else return photoPixels.get((int)(Math.random() * (photoPixels.size() - 1)));
+    private int getRandomPhotoPixel(int[] color_RGB) {
+        if (color_RGB[0] >= 250 && color_RGB[0] >= 250 && color_RGB[0] >= 250) return tileLibrary.size() - 1;
+        else return (int)(Math.random() * (tileLibrary.size() - 1));
     }
 
     static int[] color1_RGB = {255, 255, 255}; //white
@@ -278,13 +280,13 @@ public class FrameRender {
     static int[] color2_RGB = {0, 0, 0}; //black
     static int[] color2_swap_RGB = {0, 255, 0}; //color to swap black with
 
-    private PhotoPixel swapColor(PhotoPixel framePixel) {
-        if (framePixel.AVG_RED == 0) return getMostSimilarPhotoPixel(color2_swap_RGB);
+    private int swapColor(int[] color_RGB) {
+        if (color_RGB[0] == 0) return getMostSimilarPhotoPixel(color2_swap_RGB);
         else return getMostSimilarPhotoPixel(color1_swap_RGB);
     }
 
     /**
-     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the photoPixels array.
+     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the tileLibrary.
      * @param outputFileName Name of the jpg file which is the reconstructed frame
      * @throws IOException
      */
@@ -310,20 +312,10 @@ public class FrameRender {
 
         System.out.println("Analyzing Image...");
 
-        System.out.println("Rendering...");
-        Graphics2D graphics = (Graphics2D) newFrame.getGraphics();
-
-        PhotoPixel[][] framePixels = new PhotoPixel[IMAGE_HEIGHT / this.scaleFactor][IMAGE_WIDTH / this.scaleFactor];
-        for (int j = 0; j < framePixels.length; j++) {
-            for (int i = 0; i < framePixels[0].length; i++) {
-                framePixels[j][i] = new PhotoPixel(this.frame.getSubimage((i * this.scaleFactor), (j * this.scaleFactor), this.scaleFactor, this.scaleFactor));
-
-                framePixels[j][i].image = getMostSimilarPhotoPixel(framePixels[j][i]).image;
+        FrameAnalyzer analyzer = new FrameAnalyzer(this.frame);
 
-                graphics.drawImage(framePixels[j][i].image, null, i * this.scaleFactor, j * this.scaleFactor);
-                framePixels[j][i].image = null;
-            }
-        }
+        System.out.println("Rendering...");
+        BlockRenderer.render(analyzer, newFrame, this.scaleFactor, tileLibrary, FrameRender::getMostSimilarPhotoPixel, renderPool);
 
         //previousRenderedFrame = newFrame;
        // previousFramePixels = framePixels;
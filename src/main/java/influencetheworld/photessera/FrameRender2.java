@@ -8,20 +8,24 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class associated with taking a set of images and a seperate designated
  * image or video and render indivisual frame(s) by replacing areas of the
  * designated frame with the images which best match the RGB vakues of those
  * areas.
+ *
+ * Everything about a render is kept in its RenderContext. The static fields
+ * below are only the defaults new RenderContexts start out with, so several
+ * renders can run at once, each with its own context.
  */
 public class FrameRender2 {
 
-    private static int IMAGE_WIDTH, IMAGE_HEIGHT;
-    private static ArrayList<Integer> SCALE_FACTORS_ALLOWED;
-
-    public static final String RENDERED_FRAMES_FOLDER_ADDRESS = App2.renderedFrameFolderAddress;
-    public static final String RAW_FRAMES_FOLDER_ADDRESS = App2.rawFrameFolderAddress;
+    //Folders frames of videos are kept in, set with setWorkingFolders
+    public static String RENDERED_FRAMES_FOLDER_ADDRESS;
+    public static String RAW_FRAMES_FOLDER_ADDRESS;
 
     /*
     The scale factor effects how much larger a photo pixel
@@ -33,16 +37,78 @@ public class FrameRender2 {
     private int scaleFactor;
     private int numOfPhotos;
 
-    public static ArrayList<String> pixelPhotoAddresses;
+    //Position of the frame in a streamed video, or -1
+    private int frameNumber = -1;
+
+    private final RenderContext context;
 
-    public static ArrayList<PhotoPixel> photoPixels;
+    //How blocks are matched to PhotoPixels, and the resolution of the ColorCube used by the cube modes
+    public static MatchMode matchMode = MatchMode.TREE;
+    public static int colorCubeBitsPerChannel = ColorCube.DEFAULT_BITS_PER_CHANNEL;
 
-    private static BufferedImage previousFrame;
-    private static BufferedImage previousRenderedFrame;
-    private static PhotoPixel[][] previousFramePixels;
+    //Pool the blocks of a frame are rendered on. Set to null to render every block on the calling thread
+    public static ForkJoinPool renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /*
+    Number of frames of a video rendered at once. When more than one frame is
+    rendered at a time, each frame's blocks are rendered on the thread rendering
+    that frame instead of on the renderPool. Frames are always rendered one at a
+    time with temporalCoherence, since each frame depends on the one before it.
+    */
+    public static int videoRenderThreads = Runtime.getRuntime().availableProcessors();
+
+    //Whether blocks are matched to PhotoPixels by their brightness relative to the rest of the frame, rather than by color
+    public static boolean renderRelatively = true;
+
+    /*
+    Videos are decoded, rendered and encoded as one stream of frames held in
+    memory. Set to false to write every raw and rendered frame to disk as a
+    jpg first, like older versions of Photessera did.
+    */
+    public static boolean streamVideo = true;
+
+    /*
+    Frames of a video only re-match the blocks whose average color moved by
+    at least temporalThreshold in any channel since their PhotoPixel was
+    picked. Only applies when blocks are matched by color, not relatively.
+    */
+    public static boolean temporalCoherence = false;
+    public static int temporalThreshold = 5;
+
+    /*
+    Limits on how often a PhotoPixel repeats when blocks are matched by color.
+    Each PhotoPixel is used for at most maxTileUses blocks of a frame, and two
+    blocks using the same PhotoPixel are at least minTileDistance blocks apart.
+    0 turns a limit off. With either limit on, every block of a frame is matched
+    together by a ConstrainedMatcher, so temporalCoherence doesn't apply.
+    */
+    public static int maxTileUses = 0;
+    public static int minTileDistance = 0;
+
+    /*
+    Images are rendered stripBlockRows rows of blocks at a time and each band
+    is written to a png as soon as it is drawn, instead of drawing the whole
+    render onto one image and saving it as a jpg. Memory then grows with the
+    width of the render rather than its area, so print-size renders fit in
+    the heap. The target is decoded a band at a time as well, so targets
+    larger than the heap can be rendered. 0 renders images whole. Videos are
+    always rendered whole.
+    */
+    public static int stripBlockRows = 0;
+
+    /*
+    Images are exported as a Deep Zoom image with tiles this many pixels
+    across, for zoomable web viewers, instead of as a jpg. The pyramid is
+    built straight from the PhotoPixel picked for each block, so the render is
+    never drawn whole. 0 exports images as a jpg.
+    */
+    public static int deepZoomTileSize = 0;
 
     private BufferedImage frame;
 
+    //Pool the blocks of this frame are rendered on
+    private ForkJoinPool pool;
+
     /**
      * Constructor for the FrameRender which when called will
      * initiate the frame rendering process using the provided parameters.
@@ -56,110 +122,107 @@ public class FrameRender2 {
      * @throws IOException
      */
     public FrameRender2(String fileAddress, int scaleFactor, int width, int height, String outputFileName, String exportFolderAddress, ArrayList<String> pixelPhotoAddresses) throws IOException {
+        this(new RenderContext(), fileAddress, scaleFactor, width, height, outputFileName, exportFolderAddress, pixelPhotoAddresses);
+    }
+
+    /**
+     * Constructor for the FrameRender which when called will initiate
+     * the frame rendering process of a render job using the provided parameters.
+     * @param context Settings and state of the render job
+     * @param fileAddress Absolute file path for the image or video that will be recounstructed using a set of images.
+     * @param scaleFactor The side length, in pixels, of the new photos which will be reconstructing the selected file.
+     * @param width Width of new file in pixels
+     * @param height Height of new file in pixels
+     * @param outputFileName Name of reconstructed file
+     * @param exportFolderAddress Absolute path of the directory which the reconstructed file will be exported to
+     * @param pixelPhotoAddresses Absolute paths of the various images which will be reconstructing the selected file
+     * @throws IOException
+     */
+    public FrameRender2(RenderContext context, String fileAddress, int scaleFactor, int width, int height, String outputFileName, String exportFolderAddress, ArrayList<String> pixelPhotoAddresses) throws IOException {
 
         File file = new File(fileAddress);
-        
-        this.IMAGE_HEIGHT = height;
-        this.IMAGE_WIDTH = width;
 
-        System.out.println("File Extension: " + (file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1)));
-        if (file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("jpg") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("png")) {
+        this.context = context;
+        this.pool = context.renderPool;
+        context.imageHeight = height;
+        context.imageWidth = width;
 
-            this.frame = ImageIO.read(new File(fileAddress));
+        System.out.println("File Extension: " + (file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1)));
+        if (file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("jpg") || file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("png")) {
 
-            if (this.IMAGE_HEIGHT == 0) {
-                this.IMAGE_HEIGHT = this.frame.getHeight();
-            }
-            if (this.IMAGE_WIDTH == 0) {
-                this.IMAGE_WIDTH = this.frame.getWidth();
-            }
+            if (context.deepZoomTileSize > 0) {
+                try (TargetAnalyzer target = new TargetAnalyzer(fileAddress)) {
+                    setUpResolution(target.getImageWidth(), target.getImageHeight(), scaleFactor);
+                    this.numOfPhotos = pixelPhotoAddresses.size();
+                    installPhotoPixels(pixelPhotoAddresses);
+                    exportDeepZoom(target, exportFolderAddress + File.separator + outputFileName);
+                }
+            } else if (context.stripBlockRows > 0) {
+                //The target is decoded a band at a time rather than read whole
+                try (TargetAnalyzer target = new TargetAnalyzer(fileAddress)) {
+                    setUpResolution(target.getImageWidth(), target.getImageHeight(), scaleFactor);
+                    this.numOfPhotos = pixelPhotoAddresses.size();
+                    installPhotoPixels(pixelPhotoAddresses);
+                    renderStrips(target, exportFolderAddress + File.separator + outputFileName + ".png");
+                }
+            } else {
+                BufferedImage original = ImageIO.read(new File(fileAddress));
 
-            SCALE_FACTORS_ALLOWED = getFactors(this.IMAGE_WIDTH, this.IMAGE_HEIGHT);
+                setUpResolution(original.getWidth(), original.getHeight(), scaleFactor);
+                this.numOfPhotos = pixelPhotoAddresses.size();
+                this.frame = fitToResolution(original);
+                installPhotoPixels(pixelPhotoAddresses);
 
-            if (SCALE_FACTORS_ALLOWED.size() <= 1) {
-                this.IMAGE_HEIGHT = Math.round(this.IMAGE_HEIGHT / 10) * 10;
-                this.IMAGE_WIDTH = Math.round(this.IMAGE_WIDTH / 10) * 10;
-            }
+                if (context.renderRelatively) renderRelativelyFrame(exportFolderAddress + File.separator + outputFileName + ".jpg");
+                else renderFrame(exportFolderAddress + File.separator + outputFileName + ".jpg");
 
-            SCALE_FACTORS_ALLOWED = getFactors(this.IMAGE_WIDTH, this.IMAGE_HEIGHT);
-
-            System.out.println("ORIGINAL IMAGE SIZE " + this.frame.getWidth() + " x " + this.frame.getHeight());
-
-            //Calculate scale size for image to selected resolution
-            double scale;
-            if (IMAGE_WIDTH > this.frame.getWidth()) scale = (double) IMAGE_WIDTH / this.frame.getWidth();
-            else scale = (double) IMAGE_HEIGHT / this.frame.getHeight();
-            System.out.println("SCALE " + scale);
-
-            //Paste selected frame on to a BufferedImage with the selected resoultion
-            //(only do so if image is a smaller resolution than selected resolution)
-            BufferedImage temp = this.frame;
-            this.frame = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, 5);
-            Graphics2D g = (Graphics2D) this.frame.getGraphics();
-            g.setColor(Color.white);
-            g.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
-            g.drawImage(temp, null, 0, 0);
-
-            //Based on scaling take the current frame and scale it so it becomes the selected resolution
-            BufferedImage before = this.frame;
-            int w = before.getWidth();
-            int h = before.getHeight();
-            BufferedImage after = new BufferedImage(w, h, 5);
-            AffineTransform at = new AffineTransform();
-            at.scale(scale, scale);
-            AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-            after = scaleOp.filter(before, after);
-            this.frame = after;
-
-            System.out.println("NEW FRAME SIZE " + this.frame.getWidth() + " x " + this.frame.getHeight());
-
-            this.numOfPhotos = pixelPhotoAddresses.size();
-            this.pixelPhotoAddresses = pixelPhotoAddresses;
-
-            int n = 0;
-            while (n < SCALE_FACTORS_ALLOWED.size() - 1 && SCALE_FACTORS_ALLOWED.get(n) < scaleFactor) {
-                n++;
-            }
-            this.scaleFactor = SCALE_FACTORS_ALLOWED.get(n);
-            System.out.println("PIXEL SCALE FACTOR: " + this.scaleFactor);
-
-            if (photoPixels == null) {
-                photoPixels = new ArrayList<PhotoPixel>();
-                int total = pixelPhotoAddresses.size();
-                int num = 0;
-                for (String address : pixelPhotoAddresses) {
-                    PhotoPixel pixel = photoToPixel(address);
-                    if (pixel != null) {
-                        photoPixels.add(pixel);
-                        num++;
-                    } else {
-                        total--;
-                    }
-                    App.setProgressMessage(num + "/" + total + " PhotoPixels Installed");
-                }
+                context.previousFrame = this.frame;
             }
 
-            renderRelativelyFrame(exportFolderAddress + "\\" + outputFileName + ".jpg");
-
-            previousFrame = this.frame;
-
             //if the frame being exported is not a frame of a video
-            if (!exportFolderAddress.equals(RENDERED_FRAMES_FOLDER_ADDRESS)) {
-                App.alert("Rendered Image Exported to\n" + exportFolderAddress);
+            if (!exportFolderAddress.equals(context.renderedFramesFolderAddress)) {
+                RenderProgress.alert("Rendered Image Exported to\n" + exportFolderAddress);
             }
             
-        } else if (file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("mp4") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("MOV")) {
+        } else if ((file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("mp4") || file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("MOV")) && context.streamVideo) {
+
+            //The video is closed by run, or here if anything before it fails
+            try (VideoPipeline pipeline = new VideoPipeline(fileAddress)) {
+                setUpResolution(pipeline.getImageWidth(), pipeline.getImageHeight(), scaleFactor);
+                this.numOfPhotos = pixelPhotoAddresses.size();
+                installPhotoPixels(pixelPhotoAddresses);
+
+                //Every frame is rendered onto its own image, since the encoder may still be reading the previous one
+                final int frameScaleFactor = this.scaleFactor;
+                final int renderThreads = context.temporalCoherence ? 1 : context.videoRenderThreads;
+                final ForkJoinPool framePool = renderThreads > 1 ? null : context.renderPool;
+                FrameEncoder encoder = VideoFrameConversion.createEncoder(exportFolderAddress + File.separator + outputFileName + ".mp4", pipeline.getFrameRate());
+                context.blockHistory = context.temporalCoherence ? new BlockHistory(context.temporalThreshold) : null;
+                try {
+                    pipeline.run((videoFrame, frameNumber) -> new FrameRender2(context, fitToResolution(videoFrame), frameNumber, frameScaleFactor, framePool).render(), encoder, renderThreads);
+                } finally {
+                    reportBlockHistory();
+                }
+            }
+            RenderProgress.alert("Rendered Video Exported to\n" + exportFolderAddress);
+
+        } else if (file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("mp4") || file.getAbsolutePath().substring(file.getAbsolutePath().lastIndexOf(".") + 1).equals("MOV")) {
 
-            int numOfFrames = VideoFrameConversion.generateFramesFromVideo(fileAddress, RAW_FRAMES_FOLDER_ADDRESS);
-            for (int i = 0; i < numOfFrames; i++) {
-                App.setProgressMessage("Rendering Frames...\n\n" + i + "/" + numOfFrames + " Frames Rendered");
-                FrameRender2 f = new FrameRender2(RAW_FRAMES_FOLDER_ADDRESS + "\\frame-" + i + ".jpg", scaleFactor, width, height, "frame-" + i, RENDERED_FRAMES_FOLDER_ADDRESS,  pixelPhotoAddresses);
+            int numOfFrames = VideoFrameConversion.generateFramesFromVideo(fileAddress, context.rawFramesFolderAddress);
+            context.blockHistory = context.temporalCoherence ? new BlockHistory(context.temporalThreshold) : null;
+            try {
+                for (int i = 0; i < numOfFrames; i++) {
+                    RenderProgress.setProgressMessage("Rendering Frames...\n\n" + i + "/" + numOfFrames + " Frames Rendered");
+                    FrameRender2 f = new FrameRender2(context, context.rawFramesFolderAddress + File.separator + "frame-" + i + ".jpg", scaleFactor, width, height, "frame-" + i, context.renderedFramesFolderAddress,  pixelPhotoAddresses);
+                }
+            } finally {
+                reportBlockHistory();
             }
-            VideoFrameConversion.convertJPGtoMovie(exportFolderAddress + "\\" + outputFileName + ".mp4", RENDERED_FRAMES_FOLDER_ADDRESS, VideoFrameConversion.getFrameRate(fileAddress), numOfFrames);
-            App.alert("Rendered Video Exported to\n" + exportFolderAddress);
+            VideoFrameConversion.convertJPGtoMovie(exportFolderAddress + File.separator + outputFileName + ".mp4", context.renderedFramesFolderAddress, VideoFrameConversion.getFrameRate(fileAddress), numOfFrames);
+            RenderProgress.alert("Rendered Video Exported to\n" + exportFolderAddress);
         
         } else {
-            App.alert("Unsupported File Type Selected to Render.\n\nSupported File Types: mp4, mov," +
+            RenderProgress.alert("Unsupported File Type Selected to Render.\n\nSupported File Types: mp4, mov," +
                     "" +
                     "" +
                     " jpg, png");
@@ -168,119 +231,169 @@ public class FrameRender2 {
     }
 
     /**
-     * Gets the integer factors of two integers
-     * @param a A number
-     * @param b A number
-     * @return ArrayList of the factors of the two integer arguments
+     * FrameRender for a single frame of a video which has already been fitted to the resolution being rendered.
+     * @param context Settings and state of the render job the video is part of
+     * @param frame A frame with the selected resolution
+     * @param frameNumber Position of the frame in the video
+     * @param scaleFactor The side length, in pixels, of the PhotoPixels
+     * @param pool Pool the blocks of the frame are rendered on, or null to render them on the calling thread
      */
-    private ArrayList<Integer> getFactors(int a, int b) {
-        ArrayList<Integer> factors = new ArrayList<Integer>();
-        for (int i = 2; i < a && i < b; i++) {
-            if (a % i == 0 && b % i == 0) {
-                factors.add(i);
-            }
-        }
-        return factors;
+    private FrameRender2(RenderContext context, BufferedImage frame, int frameNumber, int scaleFactor, ForkJoinPool pool) {
+        this.context = context;
+        this.frame = frame;
+        this.frameNumber = frameNumber;
+        this.scaleFactor = scaleFactor;
+        this.pool = pool;
     }
 
     /**
-     * Takes a photo and downscales it to the designated size of a pixel to be later used as a photo pixel.
-     * @param photoAddress The directory address for a photo.
-     * @return A BufferedImage of the downscaled photo (now a pixel).
-     * @throws IOException
+     * Prints how many blocks were reused across the frames of a video and stops reusing them.
      */
-    private PhotoPixel photoToPixel(String photoAddress) throws IOException {
-        File file = new File(photoAddress);
-        if (file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("jpg") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("png") || file.getAbsolutePath().substring(file.getAbsolutePath().indexOf(".") + 1).equals("jpeg")) {
-            BufferedImage img = null;
-            try {
-                img = ImageIO.read(file);
-            } catch (IOException e) {
-            }
-
-            final int image_type = img.getType();
+    private void reportBlockHistory() {
+        if (context.blockHistory != null) {
+            System.out.println(String.format("Reused %.1f%% of all blocks", context.blockHistory.getSkipRate() * 100));
+            context.blockHistory = null;
+        }
+    }
 
-            int sideLength;
-            if (img.getWidth() > img.getHeight()) {
-                sideLength = img.getHeight();
-            } else {
-                sideLength = img.getWidth();
-            }
-            BufferedImage crop = img.getSubimage(0, 0, sideLength, sideLength);
+    /**
+     * Picks the resolution of the render and the closest scale factor that evenly divides it.
+     * @param frameWidth Width of the original frame, used if no width was selected
+     * @param frameHeight Height of the original frame, used if no height was selected
+     * @param scaleFactor The selected side length, in pixels, of the PhotoPixels
+     */
+    private void setUpResolution(int frameWidth, int frameHeight, int scaleFactor) {
+        if (context.imageHeight == 0) {
+            context.imageHeight = frameHeight;
+        }
+        if (context.imageWidth == 0) {
+            context.imageWidth = frameWidth;
+        }
 
-            double scale = (double) this.scaleFactor / sideLength;
+        ArrayList<Integer> scaleFactorsAllowed = getFactors(context.imageWidth, context.imageHeight);
 
-            BufferedImage before = crop;
-            int w = before.getWidth();
-            int h = before.getHeight();
-            BufferedImage after = new BufferedImage(w, h, image_type);
-            AffineTransform at = new AffineTransform();
-            at.scale(scale, scale);
-            AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-            after = scaleOp.filter(before, after);
-            after = after.getSubimage(0, 0, this.scaleFactor, this.scaleFactor);
+        if (scaleFactorsAllowed.size() <= 1) {
+            context.imageHeight = Math.round(context.imageHeight / 10) * 10;
+            context.imageWidth = Math.round(context.imageWidth / 10) * 10;
+        }
 
-            System.out.println(photoAddress + " Installed");
+        scaleFactorsAllowed = getFactors(context.imageWidth, context.imageHeight);
 
-            return new PhotoPixel(after);
+        int n = 0;
+        while (n < scaleFactorsAllowed.size() - 1 && scaleFactorsAllowed.get(n) < scaleFactor) {
+            n++;
         }
-        return null;
+        this.scaleFactor = scaleFactorsAllowed.get(n);
+        System.out.println("PIXEL SCALE FACTOR: " + this.scaleFactor);
     }
 
     /**
-     * Finds the PhotoPixel which most resembles the inputted section of the frame
-     * @param framePixel A small, cropped area of the original frame
-     * @return The PhotoPixel which most resembles the inputted framePixel
+     * Pastes a frame onto a white image with the selected resolution and scales it to fill that resolution.
+     * @param original A frame of any size
+     * @return The frame at the selected resolution
      */
-    private PhotoPixel getMostSimilarPhotoPixel(PhotoPixel framePixel) {
-        double minimum = Double.MAX_VALUE;
-        int minIndex = 0;
-        for (int i = 0; i < photoPixels.size(); i++) {
-            double squareDifference = Math.pow(framePixel.AVG_RED - photoPixels.get(i).AVG_RED, 2) + Math.pow(framePixel.AVG_GREEN - photoPixels.get(i).AVG_GREEN, 2) + Math.pow(framePixel.AVG_BLUE - photoPixels.get(i).AVG_BLUE, 2);
-            if (squareDifference < minimum) {
-                minimum = squareDifference;
-                minIndex = i;
-            }
-        }
-        return photoPixels.get(minIndex);
+    private BufferedImage fitToResolution(BufferedImage original) {
+        System.out.println("ORIGINAL IMAGE SIZE " + original.getWidth() + " x " + original.getHeight());
+        int IMAGE_WIDTH = context.imageWidth, IMAGE_HEIGHT = context.imageHeight;
+        double scale = getScale(original.getWidth(), original.getHeight());
+
+        //Paste selected frame on to a BufferedImage with the selected resoultion
+        //(only do so if image is a smaller resolution than selected resolution)
+        BufferedImage before = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, 5);
+        Graphics2D g = (Graphics2D) before.getGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        g.drawImage(original, null, 0, 0);
+        g.dispose();
+
+        //Based on scaling take the current frame and scale it so it becomes the selected resolution
+        BufferedImage after = new BufferedImage(before.getWidth(), before.getHeight(), 5);
+        AffineTransform at = new AffineTransform();
+        at.scale(scale, scale);
+        AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+        after = scaleOp.filter(before, after);
+
+        System.out.println("NEW FRAME SIZE " + after.getWidth() + " x " + after.getHeight());
+        return after;
     }
 
-    private PhotoPixel getMostRelativePhotoPixel(PhotoPixel framePixel, int numOfPixels) {
+    /**
+     * Calculates how much a frame is scaled by to fit the selected resolution.
+     * @param frameWidth Width of the frame
+     * @param frameHeight Height of the frame
+     * @return The scale of the frame at the selected resolution
+     */
+    private double getScale(int frameWidth, int frameHeight) {
+        double scale;
+        if (context.imageWidth > frameWidth) scale = (double) context.imageWidth / frameWidth;
+        else scale = (double) context.imageHeight / frameHeight;
+        System.out.println("SCALE " + scale);
+        return scale;
+    }
 
-        PhotoPixel[] officialPhotoPixels = new PhotoPixel[photoPixels.size()];
-        for (int i = 0; i < photoPixels.size(); i++) {
-            officialPhotoPixels[i] = photoPixels.get(i);
-            officialPhotoPixels[i].position = i;
-        }
+    /**
+     * Installs the selected photos as PhotoPixels at the current scale factor, unless they are already installed.
+     * @param pixelPhotoAddresses Absolute paths of the various images which will be reconstructing the selected file
+     * @throws IOException
+     */
+    private void installPhotoPixels(ArrayList<String> pixelPhotoAddresses) throws IOException {
+        context.pixelPhotoAddresses = pixelPhotoAddresses;
+        context.tileLibrary = context.tileLibraryStore.get(pixelPhotoAddresses, this.scaleFactor);
+    }
 
-        officialPhotoPixels = insertionSort(officialPhotoPixels);
-        //binarySort(officialPhotoPixels, 0, officialPhotoPixels.length);
+    /**
+     * Sets the folders the frames of videos and cached PhotoPixels are kept in. Must be called before rendering.
+     * @param photesseraDirectoryAddress Absolute path of Photessera's working folder. PhotoPixels are cached in its TileCache folder
+     * @param renderedFrameFolderAddress Absolute path of the folder rendered frames of videos are saved in
+     * @param rawFrameFolderAddress Absolute path of the folder the original frames of videos are saved in
+     */
+    public static void setWorkingFolders(String photesseraDirectoryAddress, String renderedFrameFolderAddress, String rawFrameFolderAddress) {
+        RENDERED_FRAMES_FOLDER_ADDRESS = renderedFrameFolderAddress;
+        RAW_FRAMES_FOLDER_ADDRESS = rawFrameFolderAddress;
+        TileLibraryStore.SHARED.setCacheFolder(photesseraDirectoryAddress == null ? null : photesseraDirectoryAddress + File.separator + "TileCache");
+    }
 
-        //All photopixels should know their position in the sorted list
-        for (int j = 0; j < photoPixels.size(); j++) {
-            for (int i = 0; i < officialPhotoPixels.length; i++) {
-                if (officialPhotoPixels[i].position == j) {
-                    photoPixels.get(j).position = i;
-                }
+    /**
+     * Gets the integer factors of two integers
+     * @param a A number
+     * @param b A number
+     * @return ArrayList of the factors of the two integer arguments
+     */
+    private ArrayList<Integer> getFactors(int a, int b) {
+        ArrayList<Integer> factors = new ArrayList<Integer>();
+        for (int i = 2; i < a && i < b; i++) {
+            if (a % i == 0 && b % i == 0) {
+                factors.add(i);
             }
         }
+        return factors;
+    }
 
-        System.out.println("PhotoPixels: " + photoPixels);
-
-        return photoPixels.get((framePixel.position / numOfPixels)*photoPixels.size());
+    /**
+     * Finds the PhotoPixel which most resembles a color
+     * @param color_RGB The average red, green and blue values of a small area of the original frame
+     * @return Index in the tileLibrary of the PhotoPixel which most resembles the color
+     */
+    private int getMostSimilarPhotoPixel(int[] color_RGB) {
+        return getMostSimilarPhotoPixel(color_RGB[0], color_RGB[1], color_RGB[2]);
     }
 
-    private PhotoPixel getMostSimilarPhotoPixel(int[] color_RGB) {
-        double minimum = Double.MAX_VALUE;
-        int minIndex = 0;
-        for (int i = 0; i < photoPixels.size(); i++) {
-            double squareDifference = Math.pow(color_RGB[0] - photoPixels.get(i).AVG_RED, 2) + Math.pow(color_RGB[1] - photoPixels.get(i).AVG_GREEN, 2) + Math.pow(color_RGB[2] - photoPixels.get(i).AVG_BLUE, 2);
-            if (squareDifference < minimum) {
-                minimum = squareDifference;
-                minIndex = i;
-            }
+    /**
+     * Finds the PhotoPixel closest to a color using the current matchMode.
+     * @return Index in the tileLibrary of the matching PhotoPixel
+     */
+    private int getMostSimilarPhotoPixel(int r, int g, int b) {
+        TileLibrary tileLibrary = context.tileLibrary;
+        switch (context.matchMode) {
+            case LINEAR:
+                return tileLibrary.getMostSimilarLinear(r, g, b);
+            case CUBE:
+                return tileLibrary.getColorCube(context.colorCubeBitsPerChannel).nearest(r, g, b);
+            case CUBE_EXACT:
+                return tileLibrary.getColorCube(context.colorCubeBitsPerChannel).nearestExact(r, g, b);
+            default:
+                return tileLibrary.getTree().nearest(r, g, b);
         }
-        return photoPixels.get(minIndex);
     }
 
     /**
@@ -288,14 +401,13 @@ public class FrameRender2 {
      * swapped with one of the selected pictures excluding the last
      * selected image (the last element in the array). For all areas
      * that are white they are all replaced with the last element of
-     * the photoPixel array.
-     * @param framePixel A small, cropped area of the original frame
-     * @return A random photopixel from the selected images, except for when the frame is white in which it is always returned by the last element of the photoPixel array.
+     * the tileLibrary.
+     * @param color_RGB The average red, green and blue values of a small area of the original frame
+     * @return Index of a random photopixel from the selected images, except for when the frame is white in which it is always the last element of the tileLibrary.
      */
-    private PhotoPixel getRandomPhotoPixel(PhotoPixel framePixel) {
-        int index = 0;
-        if (framePixel.AVG_RED >= 250 && framePixel.AVG_RED >= 250 && framePixel.AVG_RED >= 250) return photoPixels.get(photoPixels.size() - 1);
-        else return photoPixels.get((int)(Math.random() * (photoPixels.size() - 1)));
+    private int getRandomPhotoPixel(int[] color_RGB) {
+        if (color_RGB[0] >= 250 && color_RGB[0] >= 250 && color_RGB[0] >= 250) return context.tileLibrary.size() - 1;
+        else return (int)(Math.random() * (context.tileLibrary.size() - 1));
     }
 
     static int[] color1_RGB = {255, 255, 255}; //white
@@ -303,226 +415,239 @@ public class FrameRender2 {
     static int[] color2_RGB = {0, 0, 0}; //black
     static int[] color2_swap_RGB = {0, 255, 0}; //color to swap black with
 
-    private PhotoPixel swapColor(PhotoPixel framePixel) {
-        if (framePixel.AVG_RED == 0) return getMostSimilarPhotoPixel(color2_swap_RGB);
+    private int swapColor(int[] color_RGB) {
+        if (color_RGB[0] == 0) return getMostSimilarPhotoPixel(color2_swap_RGB);
         else return getMostSimilarPhotoPixel(color1_swap_RGB);
     }
 
     /**
-     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the photoPixels array.
+     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the tileLibrary.
      * @param outputFileName Name of the jpg file which is the reconstructed frame
      * @throws IOException
      */
     public void renderFrame(String outputFileName) throws IOException {
 
         //if the frame being rendered isn't a frame of a video
-        if ((outputFileName.length() < RENDERED_FRAMES_FOLDER_ADDRESS.length()) || ((outputFileName.length() > RENDERED_FRAMES_FOLDER_ADDRESS.length()) && !outputFileName.substring(0, RENDERED_FRAMES_FOLDER_ADDRESS.length()).equals(RENDERED_FRAMES_FOLDER_ADDRESS))) {
-            App.setProgressMessage("Analyzing Image...");
+        if ((outputFileName.length() < context.renderedFramesFolderAddress.length()) || ((outputFileName.length() > context.renderedFramesFolderAddress.length()) && !outputFileName.substring(0, context.renderedFramesFolderAddress.length()).equals(context.renderedFramesFolderAddress))) {
+            RenderProgress.setProgressMessage("Analyzing Image...");
         }
 
         BufferedImage newFrame;
 
         //If this is the first/only frame
-        if (previousFrame == null) {
-            newFrame = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, 5);
-            newFrame.getGraphics().setColor(Color.white);
-            newFrame.getGraphics().fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        if (context.previousFrame == null) {
+            newFrame = newBlankFrame();
         } else {
-            newFrame = previousFrame;
+            newFrame = context.previousFrame;
         }
 
-        System.out.println("FRAME SIZE " + this.frame.getWidth() + " x " + this.frame.getHeight());
-
-        System.out.println("Analyzing Image...");
-
-        System.out.println("Rendering...");
-        Graphics2D graphics = (Graphics2D) newFrame.getGraphics();
-
-        PhotoPixel[][] framePixels = new PhotoPixel[IMAGE_HEIGHT / this.scaleFactor][IMAGE_WIDTH / this.scaleFactor];
-        for (int j = 0; j < framePixels.length; j++) {
-            for (int i = 0; i < framePixels[0].length; i++) {
-                framePixels[j][i] = new PhotoPixel(this.frame.getSubimage((i * this.scaleFactor), (j * this.scaleFactor), this.scaleFactor, this.scaleFactor));
-
-                framePixels[j][i].image = getMostSimilarPhotoPixel(framePixels[j][i]).image;
-
-                graphics.drawImage(framePixels[j][i].image, null, i * this.scaleFactor, j * this.scaleFactor);
-                framePixels[j][i].image = null;
-            }
-        }
-
-        //previousRenderedFrame = newFrame;
-       // previousFramePixels = framePixels;
+        renderFrame(newFrame);
 
         //if the frame being rendered isn't a frame of a video
-        if ((outputFileName.length() < RENDERED_FRAMES_FOLDER_ADDRESS.length()) || ((outputFileName.length() > RENDERED_FRAMES_FOLDER_ADDRESS.length()) && !outputFileName.substring(0, RENDERED_FRAMES_FOLDER_ADDRESS.length()).equals(RENDERED_FRAMES_FOLDER_ADDRESS))) {
-            App.setProgressMessage("Rendering...");
+        if ((outputFileName.length() < context.renderedFramesFolderAddress.length()) || ((outputFileName.length() > context.renderedFramesFolderAddress.length()) && !outputFileName.substring(0, context.renderedFramesFolderAddress.length()).equals(context.renderedFramesFolderAddress))) {
+            RenderProgress.setProgressMessage("Rendering...");
         }
 
+        RenderMetrics.frameRendered();
         System.out.println(outputFileName + " Saved!\n");
-        saveAsJPG(newFrame, outputFileName);
+        saveAsJPG(newFrame, outputFileName, frameNumber);
     }
 
     /**
-     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the photoPixels array.
-     * @param outputFileName Name of the jpg file which is the reconstructed frame
-     * @throws IOException
+     * Reconstructs the current frame using the images in the tileLibrary.
+     * @param newFrame The image the PhotoPixels are drawn on
      */
-    public void renderRelativelyFrame(String outputFileName) throws IOException {
-
-        //if the frame being rendered isn't a frame of a video
-        if ((outputFileName.length() < RENDERED_FRAMES_FOLDER_ADDRESS.length()) || ((outputFileName.length() > RENDERED_FRAMES_FOLDER_ADDRESS.length()) && !outputFileName.substring(0, RENDERED_FRAMES_FOLDER_ADDRESS.length()).equals(RENDERED_FRAMES_FOLDER_ADDRESS))) {
-            App.setProgressMessage("Analyzing Image...");
-        }
-
-        BufferedImage newFrame;
-
-        //If this is the first/only frame
-        if (previousFrame == null) {
-            newFrame = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, 5);
-            newFrame.getGraphics().setColor(Color.white);
-            newFrame.getGraphics().fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
-        } else {
-            newFrame = previousFrame;
-        }
-
+    private void renderFrame(BufferedImage newFrame) {
         System.out.println("FRAME SIZE " + this.frame.getWidth() + " x " + this.frame.getHeight());
 
         System.out.println("Analyzing Image...");
 
-        System.out.println("Rendering...");
-        Graphics2D graphics = (Graphics2D) newFrame.getGraphics();
-
-        PhotoPixel[][] framePixels = new PhotoPixel[IMAGE_HEIGHT / this.scaleFactor][IMAGE_WIDTH / this.scaleFactor];
+        RenderEvents.FrameRender event = RenderEvents.ENABLED ? new RenderEvents.FrameRender() : null;
+        if (event != null) event.begin();
+        long analyzing = RenderMetrics.start();
+        FrameAnalyzer analyzer = new FrameAnalyzer(this.frame);
+        RenderMetrics.record(RenderStage.ANALYZE, analyzing, 0);
 
-        //makes a copy of framePixels to be sorted
-        PhotoPixel[] sortedByBrightnessFramePixels = new PhotoPixel[framePixels.length * framePixels[0].length];
-        System.out.println(sortedByBrightnessFramePixels.length);
-
-        for (int j = 0; j < framePixels.length; j++) {
-            for (int i = 0; i < framePixels[0].length; i++) {
-                framePixels[j][i] = new PhotoPixel(this.frame.getSubimage((i * this.scaleFactor), (j * this.scaleFactor), this.scaleFactor, this.scaleFactor));
-                System.out.println("."+framePixels.length*j + i);
-                sortedByBrightnessFramePixels[framePixels.length*j + i] = framePixels[j][i];
-                sortedByBrightnessFramePixels[framePixels.length*j + i].position = framePixels.length*j + i;
-            }
-        }
-
-        for (PhotoPixel pixel : sortedByBrightnessFramePixels) if (pixel == null) System.out.println("NULL");
-
-        sortedByBrightnessFramePixels = insertionSort(sortedByBrightnessFramePixels);
-        //binarySort(sortedByBrightnessFramePixels, 0, sortedByBrightnessFramePixels.length);
-        System.out.println(sortedByBrightnessFramePixels);
-
-        //All photopixels should know their position in the sorted list
-        for (int k = 0; k < framePixels.length; k++) {
-            for (int l = 0; l < framePixels[0].length; l++) {
-                for (int j = 0; j < framePixels.length; j++) {
-                    for (int i = 0; i < framePixels[0].length; i++) {
-                        if (sortedByBrightnessFramePixels[framePixels.length*j + i].position == (framePixels.length*j + i)) {
-                            framePixels[j][i].position = framePixels.length*k + l;
-                        }
-                    }
-                }
-            }
+        System.out.println("Rendering...");
+        if (context.maxTileUses > 0 || context.minTileDistance > 0) {
+            ConstrainedMatcher.render(analyzer, newFrame, this.scaleFactor, context.tileLibrary, context.maxTileUses, context.minTileDistance, pool);
+        } else {
+            BlockRenderer.render(analyzer, newFrame, this.scaleFactor, context.tileLibrary, this::getMostSimilarPhotoPixel, context.blockHistory, pool, frameNumber);
         }
+        commit(event, newFrame);
+    }
 
+    /**
+     * Records a FrameRender event for the frame once it has been reconstructed.
+     * @param event The event, begun when the frame started rendering
+     * @param newFrame The reconstructed frame
+     */
+    private void commit(RenderEvents.FrameRender event, BufferedImage newFrame) {
+        commit(event, newFrame.getWidth(), newFrame.getHeight(), RenderEvents.size(newFrame));
+    }
 
-        for (int j = 0; j < framePixels.length; j++) {
-            for (int i = 0; i < framePixels[0].length; i++) {
-
-                framePixels[j][i].image = getMostRelativePhotoPixel(framePixels[j][i], framePixels.length*framePixels[0].length).image;
-
-                graphics.drawImage(framePixels[j][i].image, null, i * this.scaleFactor, j * this.scaleFactor);
-                framePixels[j][i].image = null;
-            }
+    /**
+     * Records a FrameRender event for the frame once it has been reconstructed.
+     * @param event The event, begun when the frame started rendering
+     * @param width Width of the reconstructed frame
+     * @param height Height of the reconstructed frame
+     * @param bytes Number of bytes the pixels of the reconstructed frame take up
+     */
+    private void commit(RenderEvents.FrameRender event, int width, int height, long bytes) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.frameNumber = frameNumber;
+            event.width = width;
+            event.height = height;
+            event.scaleFactor = scaleFactor;
+            event.tiles = (width / scaleFactor) * (height / scaleFactor);
+            event.bytes = bytes;
+            event.commit();
         }
+    }
 
-        //previousRenderedFrame = newFrame;
-        // previousFramePixels = framePixels;
+    /**
+     * Renders the image a band at a time and streams the bands to a png, so the whole render is never held in memory.
+     * @param target The image being reconstructed
+     * @param outputFileName Absolute path of the png
+     * @throws IOException
+     */
+    private void renderStrips(TargetAnalyzer target, String outputFileName) throws IOException {
+        System.out.println("RENDERING " + context.imageWidth + " x " + context.imageHeight + " IN BANDS OF " + context.stripBlockRows + " ROWS");
+        RenderProgress.setProgressMessage("Rendering...");
 
-        //if the frame being rendered isn't a frame of a video
-        if ((outputFileName.length() < RENDERED_FRAMES_FOLDER_ADDRESS.length()) || ((outputFileName.length() > RENDERED_FRAMES_FOLDER_ADDRESS.length()) && !outputFileName.substring(0, RENDERED_FRAMES_FOLDER_ADDRESS.length()).equals(RENDERED_FRAMES_FOLDER_ADDRESS))) {
-            App.setProgressMessage("Rendering...");
-        }
+        RenderEvents.FrameRender event = RenderEvents.ENABLED ? new RenderEvents.FrameRender() : null;
+        if (event != null) event.begin();
+        StripRenderer.render(context, target, getScale(target.getImageWidth(), target.getImageHeight()), this.scaleFactor, context.stripBlockRows, this::getMostSimilarPhotoPixel, pool, outputFileName);
+        commit(event, context.imageWidth, context.imageHeight, 3L * context.imageWidth * context.imageHeight);
 
+        RenderMetrics.frameRendered();
         System.out.println(outputFileName + " Saved!\n");
-        saveAsJPG(newFrame, outputFileName);
     }
 
-    public static void binarySort(PhotoPixel[] list, int low, int high) {
+    /**
+     * Picks the PhotoPixel of every block of the image and exports the render as a Deep Zoom image.
+     * @param target The image being reconstructed
+     * @param address Absolute path of the .dzi file, without its extension
+     * @throws IOException
+     */
+    private void exportDeepZoom(TargetAnalyzer target, String address) throws IOException {
+        int columns = context.imageWidth / scaleFactor, rows = context.imageHeight / scaleFactor;
+        System.out.println("RENDERING " + context.imageWidth + " x " + context.imageHeight + " AS A DEEP ZOOM IMAGE");
+        RenderProgress.setProgressMessage("Rendering...");
+
+        RenderEvents.FrameRender event = RenderEvents.ENABLED ? new RenderEvents.FrameRender() : null;
+        if (event != null) event.begin();
+        target.setResolution(context.imageWidth, context.imageHeight, scaleFactor, getScale(target.getImageWidth(), target.getImageHeight()));
+        int[] tiles = StripRenderer.assign(context, target, columns, rows, this::getMostSimilarPhotoPixel);
+        DeepZoomExporter.export(context.tileLibrary, tiles, columns, rows, scaleFactor, context.deepZoomTileSize, address, pool);
+        commit(event, context.imageWidth, context.imageHeight, 3L * context.imageWidth * context.imageHeight);
+
+        RenderMetrics.frameRendered();
+        System.out.println(address + ".dzi Saved!\n");
+    }
 
-        if((high - low) == 0) return;
+    /**
+     * Reconstructs the current frame onto a new image, using renderRelatively to pick how.
+     * @return The reconstructed frame
+     */
+    private BufferedImage render() {
+        BufferedImage newFrame = newBlankFrame();
+        if (context.renderRelatively) renderRelativelyFrame(newFrame);
+        else renderFrame(newFrame);
+        RenderMetrics.frameRendered();
+        return newFrame;
+    }
 
-        int pivot = (low + high) / 2;
+    /**
+     * @return A white image with the selected resolution
+     */
+    private BufferedImage newBlankFrame() {
+        BufferedImage newFrame = new BufferedImage(context.imageWidth, context.imageHeight, 5);
+        Graphics2D graphics = newFrame.createGraphics();
+        graphics.setColor(Color.white);
+        graphics.fillRect(0, 0, context.imageWidth, context.imageHeight);
+        graphics.dispose();
+        return newFrame;
+    }
 
+    /**
+     * Renders and saves the current frame as a jpg file by reconstructing it using the images in the tileLibrary.
+     * @param outputFileName Name of the jpg file which is the reconstructed frame
+     * @throws IOException
+     */
+    public void renderRelativelyFrame(String outputFileName) throws IOException {
 
+        //if the frame being rendered isn't a frame of a video
+        if ((outputFileName.length() < context.renderedFramesFolderAddress.length()) || ((outputFileName.length() > context.renderedFramesFolderAddress.length()) && !outputFileName.substring(0, context.renderedFramesFolderAddress.length()).equals(context.renderedFramesFolderAddress))) {
+            RenderProgress.setProgressMessage("Analyzing Image...");
+        }
 
-        for (int i = low; i < pivot; i++) {
-            System.out.println("Low: " + low + "  High: " + high + "  PIVOT: " + pivot);
-            if (list[i].BRIGHTNESS > list[pivot].BRIGHTNESS) {
-                int temp = list[i].BRIGHTNESS;
-                list[i].BRIGHTNESS = list[pivot].BRIGHTNESS;
-                list[pivot].BRIGHTNESS = temp;
-                temp = list[pivot - 1].BRIGHTNESS;
-                list[pivot - 1] = list[i];
-                list[i].BRIGHTNESS = temp;
+        BufferedImage newFrame;
 
-                pivot--;
-                i--;
-            }
+        //If this is the first/only frame
+        if (context.previousFrame == null) {
+            newFrame = newBlankFrame();
+        } else {
+            newFrame = context.previousFrame;
         }
 
-        for (int i = pivot + 1; i <= high; i++) {
-            if (list[i].BRIGHTNESS < list[pivot].BRIGHTNESS) {
-                int temp = list[i].BRIGHTNESS;
-                list[i] = list[pivot];
-                list[pivot].BRIGHTNESS = temp;
-                temp = list[pivot + 1].BRIGHTNESS;
-                list[pivot + 1] = list[i];
-                list[i].BRIGHTNESS = temp;
-
-                pivot++;
-                i--;
-            }
-        }
+        renderRelativelyFrame(newFrame);
 
-        if (low < high) {
-            binarySort(list, low, pivot - 1);
-            binarySort(list, pivot + 1, high);
+        //if the frame being rendered isn't a frame of a video
+        if ((outputFileName.length() < context.renderedFramesFolderAddress.length()) || ((outputFileName.length() > context.renderedFramesFolderAddress.length()) && !outputFileName.substring(0, context.renderedFramesFolderAddress.length()).equals(context.renderedFramesFolderAddress))) {
+            RenderProgress.setProgressMessage("Rendering...");
         }
-    }
 
-    public static PhotoPixel[] insertionSort(PhotoPixel[] list) {
-
-        //System.out.print(list[list.length-2].BRIGHTNESS);
-        System.out.println(list.length-1);
-        int i, pivot, j;
-        for (i = 1; i < list.length; i++) {
+        RenderMetrics.frameRendered();
+        System.out.println(outputFileName + " Saved!\n");
+        saveAsJPG(newFrame, outputFileName, frameNumber);
+    }
 
-            System.out.println();
+    /**
+     * Reconstructs the current frame by giving each area of the frame the PhotoPixel with the same brightness rank.
+     * @param newFrame The image the PhotoPixels are drawn on
+     */
+    private void renderRelativelyFrame(BufferedImage newFrame) {
+        System.out.println("FRAME SIZE " + this.frame.getWidth() + " x " + this.frame.getHeight());
 
-            pivot = list[i].BRIGHTNESS;
-            j = i - 1;
+        System.out.println("Analyzing Image...");
 
-            while (j >= 0 && list[j].BRIGHTNESS > pivot) {
-                list[j + 1] = list[j];
-                j--;
-            }
-            list[j + 1].BRIGHTNESS = pivot;
-        }
-        return list;
+        RenderEvents.FrameRender event = RenderEvents.ENABLED ? new RenderEvents.FrameRender() : null;
+        if (event != null) event.begin();
+        long analyzing = RenderMetrics.start();
+        FrameAnalyzer analyzer = new FrameAnalyzer(this.frame);
+        RenderMetrics.record(RenderStage.ANALYZE, analyzing, 0);
 
+        System.out.println("Rendering...");
+        RankMapper.render(analyzer, newFrame, this.scaleFactor, context.tileLibrary, pool);
+        commit(event, newFrame);
     }
 
     /**
      * Saves a BufferedImage as a JPG file at a specified file address
      * @param img An image
      * @param address Absolute path (including the file itself) of where the file will be stored.
+     * @param frameNumber Position of the frame in a streamed video, or -1
      * @throws IOException
      */
-    private static void saveAsJPG(BufferedImage img, String address) throws IOException {
+    private static void saveAsJPG(BufferedImage img, String address, int frameNumber) throws IOException {
+        RenderEvents.FrameWrite event = RenderEvents.ENABLED ? new RenderEvents.FrameWrite() : null;
+        if (event != null) event.begin();
+        long writing = RenderMetrics.start();
         File outputfile = new File(address);
         ImageIO.write(img, "jpg", outputfile);
+        RenderMetrics.record(RenderStage.WRITE, writing, 1);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.frameNumber = frameNumber;
+                event.path = address;
+                event.bytes = outputfile.length();
+                event.commit();
+            }
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,465 @@
+package influencetheworld.photessera;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders images and videos from the command line, without any windows, so
+ * Photessera can run on machines without a display. A single render is
+ * described by arguments, and a batch of renders by a job file with the
+ * arguments of one render on each line. Renders of a batch which use the
+ * same photos and pixel size share the PhotoPixels installed for the first,
+ * which are released once the last render using those photos finishes.
+ * Each render has its own RenderContext, so several can run at once.
+ *
+ * Usage: HeadlessRenderer [options] [--jobs jobFile]
+ */
+public class HeadlessRenderer {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java -cp photessera.jar influencetheworld.photessera.HeadlessRenderer [options] [--jobs jobFile]",
+            "",
+            "Render options, which can also be given on each line of a job file:",
+            "  --target file          Image (jpg, png) or video (mp4, mov) to render",
+            "  --library path         Folder of photos, or a text file listing one photo per line. May be repeated",
+            "  --tile n               Side length, in pixels, of each PhotoPixel (default 10)",
+            "  --width n --height n   Resolution of the render (default: the target's)",
+            "  --output file          File the render is exported to. The extension is picked by the type of target",
+            "",
+            "Options for every render:",
+            "  --jobs file            Job file with the render options of one render per line. Blank lines and lines",
+            "                         starting with # are skipped. Options missing from a line come from the command line",
+            "  --parallel-jobs n      Number of jobs rendered at the same time (default 1)",
+            "  --work-dir folder      Folder for cached PhotoPixels and video frames (default: <tmp>/Photessera)",
+            "  --match mode           relative or color (default relative)",
+            "  --pyramid n,n,...      Also install PhotoPixels at these sizes, for jobs which use different sizes",
+            "  --threads n            Threads used to install PhotoPixels and render frames",
+            "  --temporal n           Only re-match blocks of a video whose color moved by n or more",
+            "  --max-uses n           With --match color, use each photo for at most n blocks of a frame",
+            "  --min-distance n       With --match color, keep blocks using the same photo at least n blocks apart",
+            "  --strips n             Render images n rows of blocks at a time, streaming them to a png instead of",
+            "                         saving a jpg, so print-size renders fit in memory",
+            "  --deep-zoom n          Export images as a Deep Zoom image (.dzi and _files folder) with tiles n pixels",
+            "                         across, for zoomable web viewers, instead of a jpg",
+            "  --encoder name         ffmpeg or jcodec (default ffmpeg)",
+            "  --codec name --crf n --bitrate n --encoder-threads n",
+            "                         Settings of the ffmpeg encoder",
+            "  --metrics n            Print a METRICS line of JSON with the time spent in each stage every n seconds,",
+            "                         and once all jobs finish. Metrics are also shown through JMX");
+
+    /**
+     * The settings of a single render.
+     */
+    private static class Job {
+        String target, output;
+        List<String> libraries = new ArrayList<String>();
+        int tileSize = 10, width, height;
+
+        Job copy() {
+            Job job = new Job();
+            job.target = target;
+            job.output = output;
+            job.libraries = new ArrayList<String>(libraries);
+            job.tileSize = tileSize;
+            job.width = width;
+            job.height = height;
+            return job;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        if (args.length == 0 || args[0].equals("--help") || args[0].equals("-h")) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        List<Job> jobs = new ArrayList<Job>();
+        String workDirectory = System.getProperty("java.io.tmpdir") + File.separator + "Photessera";
+        int parallelJobs = 1;
+        try {
+            Job defaults = new Job();
+            String jobFile = null;
+            List<String> arguments = Arrays.asList(args);
+            for (int i = 0; i < arguments.size(); i += 2) {
+                String option = arguments.get(i);
+                String value = value(arguments, i);
+                if (option.equals("--jobs")) {
+                    jobFile = value;
+                } else if (option.equals("--work-dir")) {
+                    workDirectory = value;
+                } else if (option.equals("--parallel-jobs")) {
+                    parallelJobs = positive(option, value);
+                } else if (!setGlobalOption(option, value)) {
+                    setJobOption(defaults, option, value);
+                }
+            }
+
+            if (jobFile == null) {
+                jobs.add(defaults);
+            } else {
+                jobs.addAll(readJobFile(jobFile, defaults));
+            }
+            for (Job job : jobs) {
+                validate(job);
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(e.getMessage() + "\n\n" + USAGE);
+            System.exit(2);
+        }
+
+        System.exit(run(jobs, workDirectory, parallelJobs) == 0 ? 0 : 1);
+    }
+
+    /**
+     * Renders every job, a number of them at a time.
+     * @param jobs The renders
+     * @param workDirectory Folder for cached PhotoPixels and video frames
+     * @param parallelJobs Number of jobs rendered at the same time
+     * @return The number of jobs which failed
+     */
+    private static int run(List<Job> jobs, String workDirectory, int parallelJobs) {
+        String renderedFrameFolderAddress = workDirectory + File.separator + "RenderedFrames";
+        String rawFrameFolderAddress = workDirectory + File.separator + "RawFrames";
+        FrameRender2.setWorkingFolders(workDirectory, renderedFrameFolderAddress, rawFrameFolderAddress);
+
+        //Jobs with the same libraries get the same list of photos, so the installed PhotoPixels are reused
+        Map<List<String>, ArrayList<String>> photoLists = new HashMap<List<String>, ArrayList<String>>();
+        //Number of jobs still to render with each set of libraries, so their PhotoPixels can be released after the last
+        final Map<List<String>, AtomicInteger> remainingJobs = new HashMap<List<String>, AtomicInteger>();
+        for (Job job : jobs) {
+            AtomicInteger remaining = remainingJobs.get(job.libraries);
+            if (remaining == null) remainingJobs.put(job.libraries, remaining = new AtomicInteger());
+            remaining.incrementAndGet();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelJobs);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        int failed = 0;
+        for (int j = 0; j < jobs.size(); j++) {
+            final Job job = jobs.get(j);
+            final int number = j + 1;
+            ArrayList<String> photos = photoLists.get(job.libraries);
+            if (photos == null) {
+                try {
+                    photos = listPhotos(job.libraries);
+                } catch (IOException e) {
+                    failed++;
+                    remainingJobs.get(job.libraries).decrementAndGet();
+                    System.out.println("Job " + number + " failed: " + e.getMessage());
+                    continue;
+                }
+                photoLists.put(job.libraries, photos);
+            }
+
+            //Jobs running at the same time each save the frames of their videos in their own folders
+            final RenderContext context = new RenderContext();
+            if (parallelJobs > 1) {
+                context.renderedFramesFolderAddress = renderedFrameFolderAddress + File.separator + "job-" + number;
+                context.rawFramesFolderAddress = rawFrameFolderAddress + File.separator + "job-" + number;
+            }
+            new File(context.renderedFramesFolderAddress).mkdirs();
+            new File(context.rawFramesFolderAddress).mkdirs();
+
+            final ArrayList<String> jobPhotos = photos;
+            final int count = jobs.size();
+            final AtomicInteger remaining = remainingJobs.get(job.libraries);
+            results.add(executor.submit(() -> {
+                try {
+                    return render(job, number, count, jobPhotos, context);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) context.tileLibraryStore.release(jobPhotos);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) failed++;
+            } catch (InterruptedException | ExecutionException e) {
+                failed++;
+                System.out.println("Job failed: " + e);
+            }
+        }
+        System.out.println((jobs.size() - failed) + "/" + jobs.size() + " jobs finished");
+        if (RenderMetrics.isEnabled()) {
+            RenderMetrics.stopLogging();
+            System.out.println(RenderMetrics.logLine());
+        }
+        return failed;
+    }
+
+    /**
+     * Renders a single job.
+     * @param job The render
+     * @param number Position of the job in the batch, starting at 1
+     * @param count Number of jobs in the batch
+     * @param photos Absolute paths of the photos of the job's libraries
+     * @param context Settings and state the job renders with
+     * @return Whether the job finished
+     */
+    private static boolean render(Job job, int number, int count, ArrayList<String> photos, RenderContext context) {
+        System.out.println("Job " + number + "/" + count + ": " + job.target + " -> " + job.output);
+        long start = System.nanoTime();
+        try {
+            File output = new File(job.output).getAbsoluteFile();
+            File exportFolder = output.getParentFile();
+            exportFolder.mkdirs();
+            String outputFileName = output.getName();
+            if (outputFileName.lastIndexOf('.') > 0) {
+                outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf('.'));
+            }
+
+            new FrameRender2(context, new File(job.target).getAbsolutePath(), job.tileSize, job.width, job.height, outputFileName, exportFolder.getAbsolutePath(), photos);
+            System.out.println(String.format("Job %d finished in %.1fs", number, (System.nanoTime() - start) / 1e9));
+            return true;
+        } catch (Exception | OutOfMemoryError e) {
+            System.out.println("Job " + number + " failed: " + e);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Applies an option which affects every render.
+     * @return false if the option isn't one of them
+     */
+    private static boolean setGlobalOption(String option, String value) {
+        switch (option) {
+            case "--match":
+                if (!value.equals("relative") && !value.equals("color")) throw new IllegalArgumentException("Unknown match mode " + value);
+                FrameRender2.renderRelatively = value.equals("relative");
+                return true;
+            case "--pyramid":
+                String[] sizes = value.split(",");
+                int[] pyramidScaleFactors = new int[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    pyramidScaleFactors[i] = positive(option, sizes[i].trim());
+                }
+                TileLibraryStore.SHARED.pyramidScaleFactors = pyramidScaleFactors;
+                return true;
+            case "--threads":
+                int threads = positive(option, value);
+                TileLibraryStore.SHARED.ingestThreads = threads;
+                FrameRender2.videoRenderThreads = threads;
+                FrameRender2.renderPool = new ForkJoinPool(threads);
+                return true;
+            case "--temporal":
+                FrameRender2.temporalCoherence = true;
+                FrameRender2.temporalThreshold = positive(option, value);
+                return true;
+            case "--max-uses":
+                FrameRender2.maxTileUses = positive(option, value);
+                return true;
+            case "--min-distance":
+                FrameRender2.minTileDistance = positive(option, value);
+                return true;
+            case "--strips":
+                FrameRender2.stripBlockRows = positive(option, value);
+                return true;
+            case "--deep-zoom":
+                int tileSize = positive(option, value);
+                //Checked here rather than by the exporter, which would only find it after every photo was installed
+                if (tileSize % 2 != 0) throw new IllegalArgumentException("Tiles must be an even number of pixels across, not " + tileSize);
+                FrameRender2.deepZoomTileSize = tileSize;
+                return true;
+            case "--encoder":
+                VideoFrameConversion.encoderBackend = EncoderBackend.valueOf(value.toUpperCase());
+                return true;
+            case "--codec":
+                VideoFrameConversion.videoCodec = value;
+                return true;
+            case "--crf":
+                VideoFrameConversion.videoCrf = integer(option, value);
+                return true;
+            case "--bitrate":
+                VideoFrameConversion.videoBitrate = integer(option, value);
+                return true;
+            case "--encoder-threads":
+                VideoFrameConversion.encoderThreads = integer(option, value);
+                return true;
+            case "--metrics":
+                RenderMetrics.startLogging(positive(option, value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void setJobOption(Job job, String option, String value) {
+        switch (option) {
+            case "--target":
+                job.target = value;
+                break;
+            case "--library":
+                job.libraries.add(value);
+                break;
+            case "--tile":
+                job.tileSize = positive(option, value);
+                break;
+            case "--width":
+                job.width = integer(option, value);
+                break;
+            case "--height":
+                job.height = integer(option, value);
+                break;
+            case "--output":
+                job.output = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    /**
+     * Reads a job file. Libraries listed on a line replace the ones from the command line.
+     * @param jobFile Path of the job file
+     * @param defaults Settings used for anything a line leaves out
+     * @return A job for every line which isn't blank or a comment
+     * @throws IOException
+     */
+    private static List<Job> readJobFile(String jobFile, Job defaults) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(jobFile), StandardCharsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                Job job = defaults.copy();
+                boolean librariesGiven = false;
+                List<String> arguments = split(line);
+                for (int i = 0; i < arguments.size(); i += 2) {
+                    String option = arguments.get(i);
+                    if (option.equals("--library") && !librariesGiven) {
+                        job.libraries.clear();
+                        librariesGiven = true;
+                    }
+                    try {
+                        setJobOption(job, option, value(arguments, i));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(jobFile + " line " + lineNumber + ": " + e.getMessage());
+                    }
+                }
+                jobs.add(job);
+            }
+        } finally {
+            in.close();
+        }
+        return jobs;
+    }
+
+    /**
+     * Splits a line of a job file into arguments at spaces, keeping text within double quotes together.
+     */
+    private static List<String> split(String line) {
+        List<String> arguments = new ArrayList<String>();
+        StringBuilder argument = new StringBuilder();
+        boolean quoted = false, started = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                started = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (started) arguments.add(argument.toString());
+                argument.setLength(0);
+                started = false;
+            } else {
+                argument.append(c);
+                started = true;
+            }
+        }
+        if (started) arguments.add(argument.toString());
+        return arguments;
+    }
+
+    private static void validate(Job job) {
+        if (job.target == null) throw new IllegalArgumentException("No --target given");
+        if (job.output == null) throw new IllegalArgumentException("No --output given for " + job.target);
+        if (job.libraries.isEmpty()) throw new IllegalArgumentException("No --library given for " + job.target);
+        if (!new File(job.target).isFile()) throw new IllegalArgumentException("Target " + job.target + " doesn't exist");
+        String extension = job.target.substring(job.target.lastIndexOf('.') + 1);
+        if (!Arrays.asList("jpg", "png", "mp4", "MOV").contains(extension)) {
+            throw new IllegalArgumentException("Unsupported target " + job.target + ". Supported file types: jpg, png, mp4, MOV");
+        }
+    }
+
+    /**
+     * Lists every photo in a set of libraries.
+     * @param libraries Folders of photos, whose photos are taken in order of their names, or text files listing one photo per line
+     * @return Absolute paths of the photos
+     * @throws IOException
+     */
+    private static ArrayList<String> listPhotos(List<String> libraries) throws IOException {
+        ArrayList<String> photos = new ArrayList<String>();
+        for (String library : libraries) {
+            File file = new File(library);
+            if (file.isDirectory()) {
+                File[] files = file.listFiles();
+                if (files == null) throw new IOException("Unable to list " + library);
+                Arrays.sort(files);
+                for (File photo : files) {
+                    String name = photo.getName().toLowerCase();
+                    if (photo.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png"))) {
+                        photos.add(photo.getAbsolutePath());
+                    }
+                }
+            } else if (file.isFile()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) photos.add(new File(line).getAbsolutePath());
+                    }
+                } finally {
+                    in.close();
+                }
+            } else {
+                throw new IOException("Library " + library + " doesn't exist");
+            }
+        }
+        if (photos.isEmpty()) throw new IOException("No photos found in " + libraries);
+        return photos;
+    }
+
+    private static String value(List<String> arguments, int i) {
+        if (i + 1 >= arguments.size()) throw new IllegalArgumentException("Missing value for " + arguments.get(i));
+        return arguments.get(i + 1);
+    }
+
+    private static int integer(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " must be a number, not " + value);
+        }
+    }
+
+    private static int positive(String option, String value) {
+        int n = integer(option, value);
+        if (n <= 0) throw new IllegalArgumentException(option + " must be greater than 0");
+        return n;
+    }
+}
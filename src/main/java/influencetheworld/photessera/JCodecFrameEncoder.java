@@ -0,0 +1,56 @@
+package influencetheworld.photessera;
+
+import org.jcodec.api.awt.AWTSequenceEncoder;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
+import org.jcodec.common.model.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * FrameEncoder which writes an H.264 mp4 using jcodec's pure Java encoder.
+ */
+public class JCodecFrameEncoder implements FrameEncoder {
+
+    private final File video;
+    private final SeekableByteChannel channel;
+    private final AWTSequenceEncoder encoder;
+    private boolean finished;
+
+    /**
+     * @param videoAddress Absolute path of the video being written
+     * @param fps Frame rate of the video, rounded to a whole number of frames per second
+     * @throws IOException
+     */
+    public JCodecFrameEncoder(String videoAddress, double fps) throws IOException {
+        //The channel is opened here rather than by the encoder, so it can be closed if the video is never finished
+        this.video = new File(videoAddress);
+        this.channel = NIOUtils.writableChannel(video);
+        try {
+            this.encoder = new AWTSequenceEncoder(channel, Rational.R((int) Math.round(fps), 1));
+        } catch (IOException | RuntimeException e) {
+            NIOUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    @Override
+    public void encode(BufferedImage frame) throws IOException {
+        encoder.encodeImage(frame);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        encoder.finish();
+        finished = true;
+    }
+
+    @Override
+    public void abort() {
+        if (finished) return;
+        NIOUtils.closeQuietly(channel);
+        video.delete();
+    }
+}
@@ -0,0 +1,19 @@
+package influencetheworld.photessera;
+
+/**
+ * The ways a block of the frame can be matched to a PhotoPixel.
+ */
+public enum MatchMode {
+
+    /** Compares the block with every PhotoPixel in the library. */
+    LINEAR,
+
+    /** Searches the PhotoPixelTree for every block. */
+    TREE,
+
+    /** Looks the block's color up in a ColorCube. Blocks near a boundary between two PhotoPixels may get the second closest. */
+    CUBE,
+
+    /** Looks the block's color up in a ColorCube, searching the PhotoPixelTree only for cells near a boundary. */
+    CUBE_EXACT
+}
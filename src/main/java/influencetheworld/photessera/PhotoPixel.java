@@ -1,6 +1,5 @@
 package influencetheworld.photessera;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
 
 /**
@@ -14,9 +13,8 @@ public class PhotoPixel {
     public BufferedImage image;
     public int AVG_RED, AVG_GREEN, AVG_BLUE, BRIGHTNESS;
     public int position;
-    private Color[][] pixels;
 
-    private static int NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL = 2;
+    static int NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL = 2;
 
     /**
      * Constructor for the PhotoPixel Object.
@@ -26,24 +24,43 @@ public class PhotoPixel {
 
         if (img != null) {
             this.image = img;
-            this.pixels = new Color[img.getHeight()][img.getWidth()];
-            for (int j = 0; j < img.getHeight(); j++) {
-                for (int i = (j % NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL); i < img.getWidth(); i += NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL) {
-                    this.pixels[i][j] = new Color(img.getRGB(i, j));
-                    AVG_RED += this.pixels[i][j].getRed();
-                    AVG_GREEN += this.pixels[i][j].getGreen();
-                    AVG_BLUE += this.pixels[i][j].getBlue();
-                }
-            }
-            AVG_RED /= ((img.getWidth() * img.getHeight()) / NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL);
-            AVG_GREEN /= ((img.getWidth() * img.getHeight()) / NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL);
-            AVG_BLUE /= ((img.getWidth() * img.getHeight()) / NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL);
+            int[] color = new int[3];
+            getAverageColor(img, 0, 0, img.getWidth(), img.getHeight(), color);
+            AVG_RED = color[0];
+            AVG_GREEN = color[1];
+            AVG_BLUE = color[2];
             BRIGHTNESS = (AVG_RED + AVG_GREEN + AVG_BLUE) / 3;
         } else {
             this.image = null;
         }
     }
 
+    /**
+     * Calculates the average color of an area of an image the same way a PhotoPixel
+     * analyzes its image, without creating any objects.
+     * @param img The image being analyzed
+     * @param x X coordinate of the top left corner of the area
+     * @param y Y coordinate of the top left corner of the area
+     * @param width Width of the area
+     * @param height Height of the area
+     * @param color_RGB Array of length 3 which the average red, green and blue values are written to
+     */
+    public static void getAverageColor(BufferedImage img, int x, int y, int width, int height, int[] color_RGB) {
+        int red = 0, green = 0, blue = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = (j % NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL); i < width; i += NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL) {
+                int rgb = img.getRGB(x + i, y + j);
+                red += (rgb >> 16) & 0xFF;
+                green += (rgb >> 8) & 0xFF;
+                blue += rgb & 0xFF;
+            }
+        }
+        int analyzedPixels = Math.max((width * height) / NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL, 1);
+        color_RGB[0] = red / analyzedPixels;
+        color_RGB[1] = green / analyzedPixels;
+        color_RGB[2] = blue / analyzedPixels;
+    }
+
     public static boolean samePhotoPixel(PhotoPixel a, PhotoPixel b) {
         return (Math.abs(a.AVG_RED - b.AVG_RED) < 5 && Math.abs(a.AVG_GREEN - b.AVG_GREEN) < 5 && Math.abs(a.AVG_BLUE - b.AVG_BLUE) < 5);
     }
@@ -0,0 +1,374 @@
+package influencetheworld.photessera;
+
+import java.util.Arrays;
+
+/**
+ * A k-d tree built over the average RGB values of a set of PhotoPixels.
+ * Finding the PhotoPixel whose average color is closest to a block of the
+ * frame costs about log N comparisons instead of walking every PhotoPixel.
+ * Queries always return the same index as a linear scan over the list would,
+ * including the linear scan's preference for the earliest PhotoPixel when two
+ * are equally close.
+ */
+public class PhotoPixelTree {
+
+    //Subtrees with this many PhotoPixels or less are scanned linearly
+    private static final int LEAF_SIZE = 8;
+
+    private final int size;
+
+    //Colors and original indices of the PhotoPixels, reordered into tree order
+    private final int[] red, green, blue;
+    private final int[] index;
+
+    //The axis (0 = red, 1 = green, 2 = blue) that the node at each median position splits on
+    private final byte[] axis;
+
+    /**
+     * Constructor for the PhotoPixelTree. Builds the tree once so it can be queried for every block of every frame.
+     * The color arrays are copied, so they may keep changing after the tree is built.
+     * @param avgRed Average red value of each PhotoPixel, in the order the linear scan would visit them
+     * @param avgGreen Average green value of each PhotoPixel
+     * @param avgBlue Average blue value of each PhotoPixel
+     * @param size Number of PhotoPixels in the arrays
+     */
+    public PhotoPixelTree(int[] avgRed, int[] avgGreen, int[] avgBlue, int size) {
+        this.size = size;
+        this.red = Arrays.copyOf(avgRed, size);
+        this.green = Arrays.copyOf(avgGreen, size);
+        this.blue = Arrays.copyOf(avgBlue, size);
+        this.index = new int[size];
+        this.axis = new byte[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = i;
+        }
+        build(0, size);
+    }
+
+    /**
+     * @return The number of PhotoPixels in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the PhotoPixel whose average color has the smallest squared distance to the given color.
+     * @param r Red value of the color being matched
+     * @param g Green value of the color being matched
+     * @param b Blue value of the color being matched
+     * @return Index of the closest PhotoPixel in the list the tree was built from, or -1 if the tree is empty.
+     */
+    public int nearest(int r, int g, int b) {
+        if (size == 0) return -1;
+        long[] best = {Long.MAX_VALUE, Integer.MAX_VALUE};
+        search(0, size, r, g, b, best);
+        return (int) best[1];
+    }
+
+    /**
+     * Finds the k PhotoPixels whose average colors are closest to the given color.
+     * @param r Red value of the color being matched
+     * @param g Green value of the color being matched
+     * @param b Blue value of the color being matched
+     * @param k Number of PhotoPixels to find
+     * @param indices Receives the indices of the closest PhotoPixels, closest first, with ties in index order. At least k long
+     * @param distances Receives the squared distance of each of them. At least k long
+     * @return The number of PhotoPixels found, which is k unless the tree holds fewer
+     */
+    public int nearest(int r, int g, int b, int k, int[] indices, long[] distances) {
+        return nearest(r, g, b, k, indices, distances, null);
+    }
+
+    /**
+     * Finds the k PhotoPixels whose average colors are closest to the given color, skipping removed ones.
+     * @param r Red value of the color being matched
+     * @param g Green value of the color being matched
+     * @param b Blue value of the color being matched
+     * @param k Number of PhotoPixels to find
+     * @param indices Receives the indices of the closest PhotoPixels, closest first, with ties in index order. At least k long
+     * @param distances Receives the squared distance of each of them. At least k long
+     * @param removals PhotoPixels which can't be found, or null to search all of them
+     * @return The number of PhotoPixels found, which is k unless fewer are left
+     */
+    public int nearest(int r, int g, int b, int k, int[] indices, long[] distances, Removals removals) {
+        if (k <= 0) return 0;
+        int count = search(0, size, r, g, b, k, indices, distances, 0, removals);
+
+        //Heapsort the closest PhotoPixels, which were kept as a heap with the furthest first
+        for (int end = count - 1; end > 0; end--) {
+            swap(indices, distances, 0, end);
+            siftDown(indices, distances, 0, end);
+        }
+        return count;
+    }
+
+    /**
+     * PhotoPixels removed from the searches of one caller, such as the ones a
+     * frame has used up, without changing the tree for anyone else. Subtrees
+     * with every PhotoPixel removed are skipped, so searches stay fast as most
+     * of the tree is removed.
+     */
+    public static class Removals {
+
+        private final PhotoPixelTree tree;
+
+        //Whether the PhotoPixel at each tree position was removed
+        private final boolean[] removed;
+
+        //PhotoPixels left in the subtree whose median is at each position
+        private final int[] remaining;
+
+        //Tree position of each PhotoPixel
+        private final int[] position;
+
+        /**
+         * @param tree The tree the PhotoPixels are removed from. Nothing is removed at first
+         */
+        public Removals(PhotoPixelTree tree) {
+            this.tree = tree;
+            this.removed = new boolean[tree.size];
+            this.remaining = new int[tree.size];
+            this.position = new int[tree.size];
+            for (int p = 0; p < tree.size; p++) {
+                position[tree.index[p]] = p;
+            }
+            count(0, tree.size);
+        }
+
+        private void count(int low, int high) {
+            if (high - low <= LEAF_SIZE) return;
+            int median = (low + high) >>> 1;
+            remaining[median] = high - low;
+            count(low, median);
+            count(median + 1, high);
+        }
+
+        /**
+         * Stops a PhotoPixel from being found. Removing it again does nothing.
+         * @param photoPixel Index of the PhotoPixel in the list the tree was built from
+         */
+        public void remove(int photoPixel) {
+            int p = position[photoPixel];
+            if (removed[p]) return;
+            removed[p] = true;
+            int low = 0, high = tree.size;
+            while (high - low > LEAF_SIZE) {
+                int median = (low + high) >>> 1;
+                remaining[median]--;
+                if (p == median) return;
+                if (p < median) high = median;
+                else low = median + 1;
+            }
+        }
+
+        private boolean isEmpty(int low, int high) {
+            return high - low > LEAF_SIZE && remaining[(low + high) >>> 1] == 0;
+        }
+    }
+
+    /**
+     * Squared distance between a color and the PhotoPixel stored at a tree position.
+     */
+    private long distance(int position, int r, int g, int b) {
+        long dr = r - red[position];
+        long dg = g - green[position];
+        long db = b - blue[position];
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Recursively searches the subtree stored in [low, high).
+     * @param best Two element array holding the best squared distance and index found so far.
+     */
+    private void search(int low, int high, int r, int g, int b, long[] best) {
+        if (high - low <= LEAF_SIZE) {
+            for (int i = low; i < high; i++) {
+                consider(i, r, g, b, best);
+            }
+            return;
+        }
+
+        int median = (low + high) >>> 1;
+        long diff = coordinate(axis[median], r, g, b) - coordinate(axis[median], median);
+
+        //Search the side of the split the color falls on first so the best distance shrinks quickly
+        if (diff < 0) {
+            search(low, median, r, g, b, best);
+            consider(median, r, g, b, best);
+            //Ties have to be visited too so the lowest index still wins
+            if (diff * diff <= best[0]) search(median + 1, high, r, g, b, best);
+        } else {
+            search(median + 1, high, r, g, b, best);
+            consider(median, r, g, b, best);
+            if (diff * diff <= best[0]) search(low, median, r, g, b, best);
+        }
+    }
+
+    private void consider(int position, int r, int g, int b, long[] best) {
+        long d = distance(position, r, g, b);
+        if (d < best[0] || (d == best[0] && index[position] < best[1])) {
+            best[0] = d;
+            best[1] = index[position];
+        }
+    }
+
+    /**
+     * Recursively searches the subtree stored in [low, high) for the k closest PhotoPixels.
+     * @param count Number of PhotoPixels found so far
+     * @return Number of PhotoPixels found after searching the subtree
+     */
+    private int search(int low, int high, int r, int g, int b, int k, int[] indices, long[] distances, int count, Removals removals) {
+        if (removals != null && removals.isEmpty(low, high)) return count;
+        if (high - low <= LEAF_SIZE) {
+            for (int i = low; i < high; i++) {
+                if (removals == null || !removals.removed[i]) count = consider(i, r, g, b, k, indices, distances, count);
+            }
+            return count;
+        }
+
+        int median = (low + high) >>> 1;
+        long diff = coordinate(axis[median], r, g, b) - coordinate(axis[median], median);
+        boolean medianRemoved = removals != null && removals.removed[median];
+        if (diff < 0) {
+            count = search(low, median, r, g, b, k, indices, distances, count, removals);
+            if (!medianRemoved) count = consider(median, r, g, b, k, indices, distances, count);
+            if (count < k || diff * diff <= distances[0]) count = search(median + 1, high, r, g, b, k, indices, distances, count, removals);
+        } else {
+            count = search(median + 1, high, r, g, b, k, indices, distances, count, removals);
+            if (!medianRemoved) count = consider(median, r, g, b, k, indices, distances, count);
+            if (count < k || diff * diff <= distances[0]) count = search(low, median, r, g, b, k, indices, distances, count, removals);
+        }
+        return count;
+    }
+
+    /**
+     * Adds the PhotoPixel at a tree position to the closest ones found so far, if it is close enough.
+     * They are kept as a heap with the furthest one, which is the first to be replaced, at the top.
+     * @return The new number of PhotoPixels found
+     */
+    private int consider(int position, int r, int g, int b, int k, int[] indices, long[] distances, int count) {
+        long d = distance(position, r, g, b);
+        int photoPixel = index[position];
+        if (count < k) {
+            int i = count;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!further(d, photoPixel, distances[parent], indices[parent])) break;
+                distances[i] = distances[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            distances[i] = d;
+            indices[i] = photoPixel;
+            return count + 1;
+        }
+        if (further(distances[0], indices[0], d, photoPixel)) {
+            distances[0] = d;
+            indices[0] = photoPixel;
+            siftDown(indices, distances, 0, k);
+        }
+        return count;
+    }
+
+    /**
+     * @return Whether the first PhotoPixel is further than the second, with ties going to the lower index
+     */
+    private static boolean further(long distance, int photoPixel, long otherDistance, int otherPhotoPixel) {
+        return distance > otherDistance || (distance == otherDistance && photoPixel > otherPhotoPixel);
+    }
+
+    /**
+     * Moves the PhotoPixel at the top of a heap of the closest PhotoPixels down until every parent is further than its children.
+     */
+    private static void siftDown(int[] indices, long[] distances, int i, int count) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) return;
+            if (child + 1 < count && further(distances[child + 1], indices[child + 1], distances[child], indices[child])) child++;
+            if (!further(distances[child], indices[child], distances[i], indices[i])) return;
+            swap(indices, distances, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(int[] indices, long[] distances, int i, int j) {
+        int t = indices[i]; indices[i] = indices[j]; indices[j] = t;
+        long d = distances[i]; distances[i] = distances[j]; distances[j] = d;
+    }
+
+    /**
+     * Builds the subtree stored in [low, high) by placing the median along the widest color axis in the middle.
+     */
+    private void build(int low, int high) {
+        if (high - low <= LEAF_SIZE) return;
+
+        int splitAxis = widestAxis(low, high);
+        int median = (low + high) >>> 1;
+        select(low, high - 1, median, splitAxis);
+        axis[median] = (byte) splitAxis;
+
+        build(low, median);
+        build(median + 1, high);
+    }
+
+    private int widestAxis(int low, int high) {
+        int widest = 0;
+        int widestSpread = -1;
+        for (int a = 0; a < 3; a++) {
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            for (int i = low; i < high; i++) {
+                int value = coordinate(a, i);
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = a;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Quickselect, leaving the k-th smallest element along an axis at position k with
+     * smaller or equal elements before it and larger or equal elements after it.
+     */
+    private void select(int left, int right, int k, int a) {
+        while (right > left) {
+            int pivot = coordinate(a, (left + right) >>> 1);
+            int i = left, j = right;
+            while (i <= j) {
+                while (coordinate(a, i) < pivot) i++;
+                while (coordinate(a, j) > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) right = j;
+            else if (k >= i) left = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int t = red[i]; red[i] = red[j]; red[j] = t;
+        t = green[i]; green[i] = green[j]; green[j] = t;
+        t = blue[i]; blue[i] = blue[j]; blue[j] = t;
+        t = index[i]; index[i] = index[j]; index[j] = t;
+    }
+
+    private int coordinate(int a, int position) {
+        if (a == 0) return red[position];
+        if (a == 1) return green[position];
+        return blue[position];
+    }
+
+    private static int coordinate(int a, int r, int g, int b) {
+        if (a == 0) return r;
+        if (a == 1) return g;
+        return b;
+    }
+}
@@ -0,0 +1,220 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an RGB png one strip of rows at a time, so an image can be saved
+ * while it is still being rendered without ever holding all of it in memory.
+ * Every row is compressed as soon as it is written and the compressed data is
+ * flushed to disk in IDAT chunks of a fixed size, so memory use depends only
+ * on the width of the image.
+ */
+public class PngStripWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    //Compressed data is written out in chunks of this many bytes
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    //Renders are mostly photos, which barely compress any further at higher levels while taking several times longer
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    //The filter type png puts before each row, which predicts a byte from the ones to the left, above and above left of it
+    private static final int PAETH = 4;
+
+    private final int width, height;
+    private final DataOutputStream file;
+    private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    private final DeflaterOutputStream pixels;
+
+    //Rows written so far
+    private int rowsWritten;
+
+    //The row being written and the row above it, as RGB bytes, and the filtered row
+    private byte[] row, previousRow, filtered;
+
+    /**
+     * Constructor for the PngStripWriter. Creates the file and writes its header.
+     * @param address Absolute path of the png
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @throws IOException
+     */
+    public PngStripWriter(String address, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("A png can't be " + width + " x " + height);
+        this.width = width;
+        this.height = height;
+        this.row = new byte[width * 3];
+        this.previousRow = new byte[width * 3];
+        this.filtered = new byte[width * 3 + 1];
+
+        this.file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(address), CHUNK_SIZE + 12));
+        file.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        //8 bits per channel, RGB, deflate, adaptive filtering, no interlacing
+        headerData.write(new byte[] {8, 2, 0, 0, 0});
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        this.pixels = new DeflaterOutputStream(new ChunkBuffer(CHUNK_SIZE), deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * @return The number of rows still to be written
+     */
+    public int getRowsLeft() {
+        return height - rowsWritten;
+    }
+
+    /**
+     * Writes the next rows of the image.
+     * @param strip An image as wide as the png whose first rows are the next rows of the png
+     * @param rows Number of rows of the strip to write
+     * @throws IOException
+     */
+    public void write(BufferedImage strip, int rows) throws IOException {
+        if (strip.getWidth() != width) throw new IllegalArgumentException("A strip " + strip.getWidth() + " pixels wide can't be written to a png " + width + " pixels wide");
+        if (rows > getRowsLeft() || rows > strip.getHeight()) throw new IllegalArgumentException("Can't write " + rows + " more rows to a png with " + getRowsLeft() + " rows left");
+        for (int y = 0; y < rows; y++) {
+            readRow(strip, y);
+            filterRow();
+            pixels.write(filtered);
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Finishes the png. Every row must have been written.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten < height) throw new IOException("Only " + rowsWritten + " of the " + height + " rows of the png were written");
+            pixels.close();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            file.close();
+        }
+    }
+
+    /**
+     * Copies a row of a strip into the row buffer as RGB bytes.
+     */
+    private void readRow(BufferedImage strip, int y) {
+        Raster raster = strip.getRaster();
+        if (strip.getType() == BufferedImage.TYPE_3BYTE_BGR && raster.getDataBuffer() instanceof DataBufferByte) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int pixelStride = sampleModel.getPixelStride();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            int offset = raster.getDataBuffer().getOffset() + (y - raster.getSampleModelTranslateY()) * sampleModel.getScanlineStride() - raster.getSampleModelTranslateX() * pixelStride;
+            for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+                row[i++] = data[offset + bandOffsets[0]];
+                row[i++] = data[offset + bandOffsets[1]];
+                row[i++] = data[offset + bandOffsets[2]];
+            }
+        } else {
+            int[] rgb = new int[width];
+            strip.getRGB(0, y, width, 1, rgb, 0, width);
+            for (int x = 0, i = 0; x < width; x++) {
+                row[i++] = (byte) (rgb[x] >> 16);
+                row[i++] = (byte) (rgb[x] >> 8);
+                row[i++] = (byte) rgb[x];
+            }
+        }
+    }
+
+    /**
+     * Applies the Paeth filter to the row buffer. The first row is filtered against a row of zeros.
+     */
+    private void filterRow() {
+        filtered[0] = PAETH;
+        for (int i = 0; i < row.length; i++) {
+            int left = i >= 3 ? row[i - 3] & 0xFF : 0;
+            int above = previousRow[i] & 0xFF;
+            int aboveLeft = i >= 3 ? previousRow[i - 3] & 0xFF : 0;
+            filtered[i + 1] = (byte) ((row[i] & 0xFF) - paeth(left, above, aboveLeft));
+        }
+    }
+
+    private static int paeth(int left, int above, int aboveLeft) {
+        int estimate = left + above - aboveLeft;
+        int toLeft = Math.abs(estimate - left), toAbove = Math.abs(estimate - above), toAboveLeft = Math.abs(estimate - aboveLeft);
+        if (toLeft <= toAbove && toLeft <= toAboveLeft) return left;
+        if (toAbove <= toAboveLeft) return above;
+        return aboveLeft;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        file.writeInt(length);
+        file.write(typeBytes);
+        file.write(data, 0, length);
+        file.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Collects bytes and writes them out as an IDAT chunk whenever it fills up, and once more when it is closed.
+     */
+    private class ChunkBuffer extends OutputStream {
+
+        private final byte[] data;
+        private int size;
+
+        ChunkBuffer(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == data.length) flushChunk();
+            data[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == data.length) flushChunk();
+                int n = Math.min(len, data.length - size);
+                System.arraycopy(b, off, data, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            writeChunk("IDAT", data, size);
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (size > 0) flushChunk();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders a frame relatively: instead of picking the PhotoPixel closest in
+ * color, every block gets the PhotoPixel whose brightness ranks at the same
+ * percentile of the library as the block's brightness ranks among the blocks
+ * of the frame. The darkest blocks get the darkest photos and the brightest
+ * blocks the brightest, whatever their actual colors, so every photo of the
+ * library is spread over the frame.
+ *
+ * Blocks and PhotoPixels are both ranked with a counting sort over the 256
+ * possible brightnesses, and the library is only sorted once, so a frame takes
+ * O(blocks + library) on top of analyzing its pixels. Blocks of the same
+ * brightness are ranked in reading order, so a flat area is filled with a run
+ * of neighbouring photos rather than one photo repeated.
+ */
+public class RankMapper {
+
+    /**
+     * Picks the PhotoPixel of every block of a frame by its brightness rank.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @return Index in the library of the PhotoPixel of each block, row by row
+     */
+    public static int[] assign(FrameAnalyzer frame, int scaleFactor, TileLibrary library) {
+        int columns = frame.getWidth() / scaleFactor, rows = frame.getHeight() / scaleFactor;
+        int blocks = columns * rows;
+
+        long analyzing = RenderMetrics.start();
+        int[] brightness = new int[blocks];
+        int[] color_RGB = new int[3];
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++) {
+                frame.getAverageColor(i * scaleFactor, j * scaleFactor, scaleFactor, scaleFactor, color_RGB);
+                brightness[j * columns + i] = (color_RGB[0] + color_RGB[1] + color_RGB[2]) / 3;
+            }
+        }
+        RenderMetrics.record(RenderStage.ANALYZE, analyzing, blocks);
+        return assign(brightness, library);
+    }
+
+    /**
+     * Picks the PhotoPixel of every block of a frame by its brightness rank.
+     * @param brightness Brightness of each block, from 0 to 255. Replaced by the result
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @return Index in the library of the PhotoPixel of each block, in the same order as brightness
+     */
+    public static int[] assign(int[] brightness, TileLibrary library) {
+        int blocks = brightness.length;
+        long matching = RenderMetrics.start();
+        int[] libraryOrder = library.getBrightnessOrder();
+        int[] blockOrder = TileLibrary.countingSort(brightness, blocks);
+
+        //The block ranked r out of n gets the PhotoPixel ranked r * size / n, reusing the brightness array for the result
+        int[] tiles = brightness;
+        long size = library.size();
+        for (int rank = 0; rank < blocks; rank++) {
+            tiles[blockOrder[rank]] = libraryOrder[(int) (rank * size / blocks)];
+        }
+        RenderMetrics.record(RenderStage.MATCH, matching, blocks);
+        return tiles;
+    }
+
+    /**
+     * Renders every block of a frame into an output image by brightness rank.
+     * @param frame FrameAnalyzer over the frame being reconstructed
+     * @param output The image the PhotoPixels are drawn on, the same size as the frame
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param library The PhotoPixels the frame is reconstructed from
+     * @param pool Pool the PhotoPixels are drawn on, or null to draw them on the calling thread
+     */
+    public static void render(FrameAnalyzer frame, BufferedImage output, int scaleFactor, TileLibrary library, ForkJoinPool pool) {
+        int[] tiles = assign(frame, scaleFactor, library);
+        BlockRenderer.draw(output, scaleFactor, library, tiles, frame.getWidth() / scaleFactor, pool);
+    }
+}
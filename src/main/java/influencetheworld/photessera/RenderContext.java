@@ -0,0 +1,61 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The settings and state of one render job. Every FrameRender2 of a job,
+ * including the ones made for each frame of a video, shares the job's
+ * context, and nothing about a job is kept in static fields. Jobs with their
+ * own contexts can therefore render at the same time in one process, sharing
+ * installed PhotoPixels through a TileLibraryStore.
+ *
+ * The settings start out as FrameRender2's defaults and can be changed before
+ * the job starts rendering. A context must only be used by one job at a time.
+ */
+public class RenderContext {
+
+    //How blocks are matched to PhotoPixels, and the resolution of the ColorCube used by the cube modes
+    public MatchMode matchMode = FrameRender2.matchMode;
+    public int colorCubeBitsPerChannel = FrameRender2.colorCubeBitsPerChannel;
+
+    //Pool the blocks of a frame are rendered on, or null to render every block on the calling thread
+    public ForkJoinPool renderPool = FrameRender2.renderPool;
+
+    public boolean renderRelatively = FrameRender2.renderRelatively;
+    public boolean streamVideo = FrameRender2.streamVideo;
+    public boolean temporalCoherence = FrameRender2.temporalCoherence;
+    public int temporalThreshold = FrameRender2.temporalThreshold;
+    public int maxTileUses = FrameRender2.maxTileUses;
+    public int minTileDistance = FrameRender2.minTileDistance;
+    public int stripBlockRows = FrameRender2.stripBlockRows;
+    public int deepZoomTileSize = FrameRender2.deepZoomTileSize;
+    public int videoRenderThreads = FrameRender2.videoRenderThreads;
+
+    //Folders the frames of a video are saved in when they aren't streamed
+    public String renderedFramesFolderAddress = FrameRender2.RENDERED_FRAMES_FOLDER_ADDRESS;
+    public String rawFramesFolderAddress = FrameRender2.RAW_FRAMES_FOLDER_ADDRESS;
+
+    //Where the job gets its PhotoPixels from
+    public TileLibraryStore tileLibraryStore = TileLibraryStore.SHARED;
+
+    //Resolution of the render, picked once the first frame is read
+    int imageWidth, imageHeight;
+
+    ArrayList<String> pixelPhotoAddresses;
+    TileLibrary tileLibrary;
+
+    //The last frame rendered, which the next frame of a video saved as jpgs is drawn over
+    BufferedImage previousFrame;
+
+    //Blocks of the last frame of a video, when rendering with temporalCoherence
+    BlockHistory blockHistory;
+
+    /**
+     * @return The PhotoPixels the job is rendering with, or null if they haven't been installed yet
+     */
+    public TileLibrary getTileLibrary() {
+        return tileLibrary;
+    }
+}
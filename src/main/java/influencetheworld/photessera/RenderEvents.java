@@ -0,0 +1,195 @@
+package influencetheworld.photessera;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Java Flight Recorder events marking each step a frame or photo goes through,
+ * so a recording of a long render shows exactly which frame or photo was slow.
+ * They are recorded alongside JFR's own CPU and allocation events, for example
+ * with -XX:StartFlightRecording=settings=profile,filename=render.jfr, and can be
+ * viewed in JDK Mission Control or printed with jfr print --categories Photessera.
+ *
+ * Events are only filled in when shouldCommit says they will be recorded, so
+ * without a recording they cost nothing once the JIT has removed them.
+ *
+ * Java 8 runtimes before 8u262 have no jdk.jfr, and loading any of these events
+ * there throws NoClassDefFoundError. Events are only created when ENABLED, and
+ * are null otherwise, so renders still run on those runtimes, just untraced.
+ * This class itself only refers to jdk.jfr through its nested event classes,
+ * so it can always be loaded to check.
+ */
+class RenderEvents {
+
+    private static final String CATEGORY = "Photessera";
+
+    /** Whether the runtime has Java Flight Recorder's event API, without which no event may be created. */
+    static final boolean ENABLED = isFlightRecorderAvailable();
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, RenderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.out.println("Java Flight Recorder is not available, so renders won't be traced: " + e);
+            return false;
+        }
+    }
+
+    @Name("influencetheworld.photessera.TileDecode")
+    @Label("Decode Photo")
+    @Description("A photo decoded and downscaled into PhotoPixels")
+    @Category({CATEGORY, "Tile Library"})
+    @StackTrace(false)
+    static class TileDecode extends Event {
+        @Label("Photo Index")
+        int photoIndex;
+
+        @Label("Photo")
+        String photoAddress;
+
+        @Label("Scale Factor")
+        int scaleFactor;
+
+        @Label("File Size")
+        @DataAmount
+        long fileBytes;
+
+        @Label("Decoded Size")
+        @DataAmount
+        long decodedBytes;
+    }
+
+    @Name("influencetheworld.photessera.TileLibraryIngest")
+    @Label("Install PhotoPixels")
+    @Description("A set of photos installed as PhotoPixels at one or more sizes")
+    @Category({CATEGORY, "Tile Library"})
+    static class TileLibraryIngest extends Event {
+        @Label("Photos")
+        int photos;
+
+        @Label("Installed")
+        int installed;
+
+        @Label("Decoded")
+        @Description("Photos which weren't in a cache")
+        int decoded;
+
+        @Label("Scale Factors")
+        String scaleFactors;
+    }
+
+    //Frame numbers are -1 for images and frames which aren't rendered as part of a streamed video
+
+    @Name("influencetheworld.photessera.FrameRender")
+    @Label("Render Frame")
+    @Description("A frame reconstructed from PhotoPixels")
+    @Category({CATEGORY, "Frame"})
+    @StackTrace(false)
+    static class FrameRender extends Event {
+        @Label("Frame Number")
+        int frameNumber;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Scale Factor")
+        int scaleFactor;
+
+        @Label("Tiles")
+        int tiles;
+
+        @Label("Frame Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("influencetheworld.photessera.BlockBatch")
+    @Label("Match Blocks")
+    @Description("A band of rows of blocks analyzed, matched and drawn on one thread")
+    @Category({CATEGORY, "Frame"})
+    @StackTrace(false)
+    static class BlockBatch extends Event {
+        @Label("Frame Number")
+        int frameNumber;
+
+        @Label("First Row")
+        int firstRow;
+
+        @Label("Last Row")
+        int lastRow;
+
+        @Label("Tiles")
+        int tiles;
+
+        @Label("Tiles Drawn")
+        @Description("Tiles which changed since the previous frame and were drawn again")
+        int tilesDrawn;
+
+        @Label("Drawn Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("influencetheworld.photessera.FrameDecode")
+    @Label("Decode Frame")
+    @Description("A frame read from the original video")
+    @Category({CATEGORY, "Video"})
+    @StackTrace(false)
+    static class FrameDecode extends Event {
+        @Label("Frame Number")
+        int frameNumber;
+
+        @Label("Frame Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("influencetheworld.photessera.FrameEncode")
+    @Label("Encode Frame")
+    @Description("A rendered frame compressed into the output video. Frame -1 is the encoder flushing its last frames")
+    @Category({CATEGORY, "Video"})
+    @StackTrace(false)
+    static class FrameEncode extends Event {
+        @Label("Frame Number")
+        int frameNumber;
+
+        @Label("Frame Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("influencetheworld.photessera.FrameWrite")
+    @Label("Write Frame")
+    @Description("An image or frame saved to disk")
+    @Category({CATEGORY, "Frame"})
+    @StackTrace(false)
+    static class FrameWrite extends Event {
+        @Label("Frame Number")
+        int frameNumber;
+
+        @Label("File")
+        String path;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * @return Number of bytes the pixels of an image take up in memory
+     */
+    static long size(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+}
@@ -0,0 +1,334 @@
+package influencetheworld.photessera;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where a render spends its time. Every RenderStage records how often it ran,
+ * how many items it handled and how long it took, added up over every render
+ * in the process. The totals are shown through JMX MBeans under
+ * influencetheworld.photessera:type=RenderMetrics, and can also be printed as
+ * a periodic log line starting with "METRICS " followed by a single line of JSON.
+ *
+ * Metrics are disabled unless the photessera.metrics system property is true
+ * or they are enabled through setEnabled or JMX. While disabled, the stages
+ * skip reading the clock, so the only cost left is reading the enabled flag.
+ */
+public class RenderMetrics {
+
+    private static final String OBJECT_NAME = "influencetheworld.photessera:type=RenderMetrics";
+
+    private static volatile boolean enabled = Boolean.getBoolean("photessera.metrics");
+
+    private static final int STAGES = RenderStage.values().length;
+    private static final LongAdder[] calls = new LongAdder[STAGES];
+    private static final LongAdder[] items = new LongAdder[STAGES];
+    private static final LongAdder[] nanos = new LongAdder[STAGES];
+    private static final LongAdder frames = new LongAdder();
+
+    //Queue depths are kept even while disabled, since they go up and down and would be wrong if counted only part of the time
+    private static final AtomicInteger framesWaitingToRender = new AtomicInteger();
+    private static final AtomicInteger framesWaitingToEncode = new AtomicInteger();
+
+    private static volatile long startTime = System.nanoTime();
+
+    private static ScheduledExecutorService logger;
+
+    static {
+        for (int s = 0; s < STAGES; s++) {
+            calls[s] = new LongAdder();
+            items[s] = new LongAdder();
+            nanos[s] = new LongAdder();
+        }
+        registerMBeans();
+    }
+
+    /**
+     * The JMX view of the totals of every stage.
+     */
+    private static class Bean implements RenderMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return RenderMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            RenderMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public double getElapsedSeconds() {
+            return RenderMetrics.getElapsedSeconds();
+        }
+
+        @Override
+        public long getFramesRendered() {
+            return frames.sum();
+        }
+
+        @Override
+        public double getFramesPerSecond() {
+            return getFramesRendered() / getElapsedSeconds();
+        }
+
+        @Override
+        public long getTilesRendered() {
+            return items[RenderStage.BLIT.ordinal()].sum();
+        }
+
+        @Override
+        public double getTilesPerSecond() {
+            return getTilesRendered() / getElapsedSeconds();
+        }
+
+        @Override
+        public long getPhotosIngested() {
+            return items[RenderStage.INGEST.ordinal()].sum();
+        }
+
+        @Override
+        public double getPhotosIngestedPerSecond() {
+            return getPhotosIngested() / getElapsedSeconds();
+        }
+
+        @Override
+        public int getFramesWaitingToRender() {
+            return framesWaitingToRender.get();
+        }
+
+        @Override
+        public int getFramesWaitingToEncode() {
+            return framesWaitingToEncode.get();
+        }
+
+        @Override
+        public void reset() {
+            RenderMetrics.reset();
+        }
+    }
+
+    /**
+     * The JMX view of a single stage.
+     */
+    private static class StageBean implements StageMetricsMXBean {
+        private final int stage;
+
+        StageBean(RenderStage stage) {
+            this.stage = stage.ordinal();
+        }
+
+        @Override
+        public long getCalls() {
+            return calls[stage].sum();
+        }
+
+        @Override
+        public long getItems() {
+            return items[stage].sum();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return nanos[stage].sum() / 1e6;
+        }
+
+        @Override
+        public double getItemsPerSecond() {
+            long time = nanos[stage].sum();
+            return time == 0 ? 0 : getItems() / (time / 1e9);
+        }
+    }
+
+    private static void registerMBeans() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+            for (RenderStage stage : RenderStage.values()) {
+                server.registerMBean(new StageBean(stage), new ObjectName(OBJECT_NAME + ",stage=" + stage.name().toLowerCase(Locale.ROOT)));
+            }
+        } catch (JMException | SecurityException e) {
+            System.out.println("Unable to register render metrics with JMX: " + e);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording. Counts recorded so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !RenderMetrics.enabled) startTime = System.nanoTime();
+        RenderMetrics.enabled = enabled;
+    }
+
+    /**
+     * Sets every count back to zero and restarts the clock rates are averaged over.
+     */
+    public static void reset() {
+        for (int s = 0; s < STAGES; s++) {
+            calls[s].reset();
+            items[s].reset();
+            nanos[s].reset();
+        }
+        frames.reset();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Reads the clock at the start of a stage.
+     * @return The time to pass to record, or 0 if metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a stage which began when start was called.
+     * @param stage The stage which ran
+     * @param start The value start returned, or 0 to record nothing
+     * @param count Number of items the stage handled
+     */
+    public static void record(RenderStage stage, long start, long count) {
+        if (start != 0) add(stage, System.nanoTime() - start, count);
+    }
+
+    /**
+     * Records time spent in a stage which was measured by the caller, such as
+     * the total of many short runs of the stage within one loop.
+     * @param stage The stage which ran
+     * @param time Nanoseconds spent in the stage
+     * @param count Number of items the stage handled
+     */
+    public static void add(RenderStage stage, long time, long count) {
+        int s = stage.ordinal();
+        calls[s].increment();
+        items[s].add(count);
+        nanos[s].add(time);
+    }
+
+    /**
+     * Counts a frame or image which finished rendering.
+     */
+    public static void frameRendered() {
+        if (enabled) frames.increment();
+    }
+
+    /**
+     * @param delta Change in the number of decoded frames of videos waiting for a render thread
+     */
+    static void framesWaitingToRender(int delta) {
+        framesWaitingToRender.addAndGet(delta);
+    }
+
+    /**
+     * @param delta Change in the number of rendered frames of videos waiting to be encoded
+     */
+    static void framesWaitingToEncode(int delta) {
+        framesWaitingToEncode.addAndGet(delta);
+    }
+
+    private static double getElapsedSeconds() {
+        return Math.max((System.nanoTime() - startTime) / 1e9, 1e-9);
+    }
+
+    /**
+     * Enables metrics and prints a log line every interval until stopLogging is called.
+     * Rates in each line are averaged over the interval since the line before it.
+     * @param intervalSeconds Seconds between log lines
+     */
+    public static synchronized void startLogging(long intervalSeconds) {
+        stopLogging();
+        setEnabled(true);
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Photessera Metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Snapshot[] previous = {new Snapshot()};
+        logger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Snapshot now = new Snapshot();
+                System.out.println(logLine(previous[0], now));
+                previous[0] = now;
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops printing log lines. Metrics stay enabled.
+     */
+    public static synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    /**
+     * @return A log line with the totals since metrics were enabled or reset, and rates averaged over that time
+     */
+    public static String logLine() {
+        return logLine(new Snapshot(startTime), new Snapshot());
+    }
+
+    /**
+     * The counts at one moment, so rates can be found over the time between two of them.
+     */
+    private static class Snapshot {
+        final long time;
+        final long frames;
+        final long[] calls = new long[STAGES], items = new long[STAGES], nanos = new long[STAGES];
+
+        //The counts now
+        Snapshot() {
+            this.time = System.nanoTime();
+            this.frames = RenderMetrics.frames.sum();
+            for (int s = 0; s < STAGES; s++) {
+                calls[s] = RenderMetrics.calls[s].sum();
+                items[s] = RenderMetrics.items[s].sum();
+                nanos[s] = RenderMetrics.nanos[s].sum();
+            }
+        }
+
+        //No counts at all, as they were at an earlier time
+        Snapshot(long time) {
+            this.time = time;
+            this.frames = 0;
+        }
+    }
+
+    private static String logLine(Snapshot before, Snapshot after) {
+        double seconds = Math.max((after.time - before.time) / 1e9, 1e-9);
+        int blit = RenderStage.BLIT.ordinal(), ingest = RenderStage.INGEST.ordinal();
+        StringBuilder line = new StringBuilder("METRICS {");
+        line.append(String.format(Locale.ROOT, "\"timestamp\":%d,\"intervalSeconds\":%.3f", System.currentTimeMillis(), seconds));
+        line.append(String.format(Locale.ROOT, ",\"frames\":%d,\"framesPerSecond\":%.3f", after.frames, (after.frames - before.frames) / seconds));
+        line.append(String.format(Locale.ROOT, ",\"tiles\":%d,\"tilesPerSecond\":%.1f", after.items[blit], (after.items[blit] - before.items[blit]) / seconds));
+        line.append(String.format(Locale.ROOT, ",\"photosIngested\":%d,\"photosPerSecond\":%.1f", after.items[ingest], (after.items[ingest] - before.items[ingest]) / seconds));
+        line.append(String.format(Locale.ROOT, ",\"framesWaitingToRender\":%d,\"framesWaitingToEncode\":%d", framesWaitingToRender.get(), framesWaitingToEncode.get()));
+        line.append(",\"stages\":{");
+        for (RenderStage stage : RenderStage.values()) {
+            int s = stage.ordinal();
+            if (s > 0) line.append(',');
+            line.append(String.format(Locale.ROOT, "\"%s\":{\"calls\":%d,\"items\":%d,\"millis\":%.1f,\"intervalMillis\":%.1f}",
+                    stage.name().toLowerCase(Locale.ROOT), after.calls[s], after.items[s], after.nanos[s] / 1e6, (after.nanos[s] - before.nanos[s]) / 1e6));
+        }
+        return line.append("}}").toString();
+    }
+}
@@ -0,0 +1,44 @@
+package influencetheworld.photessera;
+
+/**
+ * The throughput of every render in the process, as shown through JMX.
+ * Rates are averaged over the time since metrics were enabled or reset.
+ */
+public interface RenderMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return Seconds since metrics were enabled or reset
+     */
+    double getElapsedSeconds();
+
+    long getFramesRendered();
+
+    double getFramesPerSecond();
+
+    long getTilesRendered();
+
+    double getTilesPerSecond();
+
+    long getPhotosIngested();
+
+    double getPhotosIngestedPerSecond();
+
+    /**
+     * @return Frames of videos which have been decoded and are waiting for a render thread
+     */
+    int getFramesWaitingToRender();
+
+    /**
+     * @return Frames of videos which have been rendered and are waiting for every earlier frame to be encoded
+     */
+    int getFramesWaitingToEncode();
+
+    /**
+     * Sets every count back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,47 @@
+package influencetheworld.photessera;
+
+/**
+ * Where the rendering engine reports its progress and results. The JavaFX
+ * windows show them in a ProgressBox, and anything else, such as the headless
+ * HeadlessRenderer, gets them printed to the console. This keeps the engine
+ * from touching JavaFX, so it can run on machines without a display.
+ */
+public class RenderProgress {
+
+    /**
+     * Receives the progress of a render.
+     */
+    public interface Listener {
+        /**
+         * @param text Describes how far along the render is
+         */
+        void setProgressMessage(String text);
+
+        /**
+         * @param text Something the user has to know, like where a render was exported to
+         */
+        void alert(String text);
+    }
+
+    //Prints every alert to the console. Progress messages are too frequent to print
+    public static final Listener CONSOLE = new Listener() {
+        @Override
+        public void setProgressMessage(String text) {
+        }
+
+        @Override
+        public void alert(String text) {
+            System.out.println(text.replace("\n\n", " ").replace('\n', ' '));
+        }
+    };
+
+    public static volatile Listener listener = CONSOLE;
+
+    public static void setProgressMessage(String text) {
+        listener.setProgressMessage(text);
+    }
+
+    public static void alert(String text) {
+        listener.alert(text);
+    }
+}
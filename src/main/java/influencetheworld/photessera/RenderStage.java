@@ -0,0 +1,28 @@
+package influencetheworld.photessera;
+
+/**
+ * The stages a render spends its time in, which RenderMetrics times separately.
+ */
+public enum RenderStage {
+
+    /** Reading frames from the original video, or bands of a target image. Items are frames. */
+    DECODE,
+
+    /** Finding the average color of the blocks of a frame. Items are blocks. */
+    ANALYZE,
+
+    /** Picking the PhotoPixel for each block. Items are blocks. */
+    MATCH,
+
+    /** Drawing the picked PhotoPixels onto the rendered frame. Items are blocks drawn. */
+    BLIT,
+
+    /** Compressing rendered frames into the output video. Items are frames. */
+    ENCODE,
+
+    /** Saving images and frames to disk. Items are files. */
+    WRITE,
+
+    /** Installing photos as PhotoPixels. Items are photos. */
+    INGEST
+}
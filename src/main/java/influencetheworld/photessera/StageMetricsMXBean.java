@@ -0,0 +1,27 @@
+package influencetheworld.photessera;
+
+/**
+ * The time spent in one RenderStage, as shown through JMX.
+ */
+public interface StageMetricsMXBean {
+
+    /**
+     * @return Number of times the stage ran
+     */
+    long getCalls();
+
+    /**
+     * @return Number of frames, blocks, files or photos the stage handled
+     */
+    long getItems();
+
+    /**
+     * @return Total time spent in the stage, added up over every thread
+     */
+    double getTotalMillis();
+
+    /**
+     * @return Items handled per second of time spent in the stage
+     */
+    double getItemsPerSecond();
+}
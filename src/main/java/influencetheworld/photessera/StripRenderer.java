@@ -0,0 +1,132 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders an image a band of rows of blocks at a time, writing every band to
+ * a png as soon as it is drawn. The target is analyzed straight from its file
+ * by a TargetAnalyzer, so neither the target, nor the target scaled up to the
+ * resolution of the render, nor the render itself is ever held in memory as
+ * one image. Print-size renders of tens of thousands of pixels a side only
+ * need memory for one band, plus a few ints per block.
+ *
+ * Blocks matched by color are analyzed, matched and drawn one band at a time.
+ * Matching relatively or with limits on how often a PhotoPixel repeats
+ * depends on every block of the image, so those first analyze every block,
+ * pick every PhotoPixel, and then draw the bands.
+ */
+class StripRenderer {
+
+    /**
+     * Renders an image and saves it as a png.
+     * @param context Settings of the render job, holding its resolution and PhotoPixels
+     * @param target The image being reconstructed
+     * @param scale How much the target is scaled to the resolution of the render
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param bandRows Number of rows of blocks rendered at once
+     * @param matcher Picks the PhotoPixel for each block when they are matched by color without limits
+     * @param pool Pool the blocks of each band are drawn on, or null to draw them on the calling thread
+     * @param outputFileName Absolute path of the png
+     * @throws IOException
+     */
+    static void render(RenderContext context, TargetAnalyzer target, double scale, int scaleFactor, int bandRows, BlockRenderer.BlockMatcher matcher, ForkJoinPool pool, String outputFileName) throws IOException {
+        int width = context.imageWidth, height = context.imageHeight;
+        int columns = width / scaleFactor, rows = height / scaleFactor;
+        TileLibrary library = context.tileLibrary;
+        target.setResolution(width, height, scaleFactor, scale);
+
+        //Every block has to be analyzed before any PhotoPixel can be picked when matching relatively or with limits
+        int[] tiles = null;
+        if (context.renderRelatively || context.maxTileUses > 0 || context.minTileDistance > 0) {
+            tiles = assign(context, target, columns, rows, matcher);
+        }
+
+        BufferedImage strip = new BufferedImage(width, Math.min(bandRows, rows) * scaleFactor, BufferedImage.TYPE_3BYTE_BGR);
+        int bandBlocks = Math.min(bandRows, rows) * columns;
+        int[] red = tiles == null ? new int[bandBlocks] : null, green = tiles == null ? new int[bandBlocks] : null, blue = tiles == null ? new int[bandBlocks] : null;
+        int[] bandTiles = tiles == null ? new int[bandBlocks] : null;
+
+        RenderEvents.FrameWrite event = RenderEvents.ENABLED ? new RenderEvents.FrameWrite() : null;
+        if (event != null) event.begin();
+        PngStripWriter writer = new PngStripWriter(outputFileName, width, height);
+        try {
+            for (int firstRow = 0; firstRow < rows; firstRow += bandRows) {
+                int lastRow = Math.min(firstRow + bandRows, rows);
+                if (tiles != null) {
+                    BlockRenderer.draw(strip, scaleFactor, library, tiles, columns, firstRow, lastRow, pool);
+                } else {
+                    int blocks = (lastRow - firstRow) * columns;
+                    target.readBlockRows(lastRow - firstRow, red, green, blue, 0);
+                    long matching = RenderMetrics.start();
+                    for (int block = 0; block < blocks; block++) {
+                        bandTiles[block] = matcher.match(red[block], green[block], blue[block]);
+                    }
+                    RenderMetrics.record(RenderStage.MATCH, matching, blocks);
+                    BlockRenderer.draw(strip, scaleFactor, library, bandTiles, columns, 0, lastRow - firstRow, pool);
+                }
+
+                long writing = RenderMetrics.start();
+                writer.write(strip, (lastRow - firstRow) * scaleFactor);
+                RenderMetrics.record(RenderStage.WRITE, writing, 0);
+                RenderProgress.setProgressMessage(String.format("Rendered %d of %d rows", lastRow, rows));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                writer.close();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+        long closing = RenderMetrics.start();
+        writer.close();
+        RenderMetrics.record(RenderStage.WRITE, closing, 1);
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.frameNumber = -1;
+                event.path = outputFileName;
+                event.bytes = new File(outputFileName).length();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Analyzes every block of an image and picks its PhotoPixel the way the render job matches blocks.
+     * @param context Settings of the render job, holding its PhotoPixels
+     * @param target The image being reconstructed, with its resolution already set
+     * @param columns Number of blocks in each row
+     * @param rows Number of rows of blocks
+     * @param matcher Picks the PhotoPixel for each block when they are matched by color without limits
+     * @return Index in the TileLibrary of the PhotoPixel of each block, row by row
+     * @throws IOException
+     */
+    static int[] assign(RenderContext context, TargetAnalyzer target, int columns, int rows, BlockRenderer.BlockMatcher matcher) throws IOException {
+        int blocks = columns * rows;
+        int[] red = new int[blocks], green = new int[blocks], blue = new int[blocks];
+        target.readBlockRows(rows, red, green, blue, 0);
+
+        if (context.renderRelatively) {
+            for (int block = 0; block < blocks; block++) {
+                red[block] = (red[block] + green[block] + blue[block]) / 3;
+            }
+            return RankMapper.assign(red, context.tileLibrary);
+        }
+        if (context.maxTileUses > 0 || context.minTileDistance > 0) {
+            return ConstrainedMatcher.assign(red, green, blue, columns, context.tileLibrary, context.maxTileUses, context.minTileDistance);
+        }
+
+        //The red array is reused for the result
+        long matching = RenderMetrics.start();
+        for (int block = 0; block < blocks; block++) {
+            red[block] = matcher.match(red[block], green[block], blue[block]);
+        }
+        RenderMetrics.record(RenderStage.MATCH, matching, blocks);
+        return red;
+    }
+}
@@ -0,0 +1,249 @@
+package influencetheworld.photessera;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Finds the average color of every block of a render straight from the file
+ * of the target image, without ever reading the whole image or scaling it up
+ * to the resolution of the render. The image is decoded a band of rows at a
+ * time with ImageReader.setSourceRegion, and rows of blocks are averaged as
+ * soon as the rows of the image they cover have been decoded, so scans and
+ * panoramas far larger than the heap can be rendered.
+ *
+ * The target is scaled the same way FrameRender2.fitToResolution scales it,
+ * with any part of the render it doesn't cover left white. Each block is the
+ * average of the area of the image it covers, weighing pixels by how much of
+ * them lies inside the block. When a block covers many pixels of the image,
+ * the image is decoded with subsampling so only about SAMPLES_PER_BLOCK
+ * pixels across each block are read.
+ */
+public class TargetAnalyzer implements Closeable {
+
+    //Rows and columns of pixels of the image analyzed across each block, at least
+    private static final int SAMPLES_PER_BLOCK = 8;
+
+    /*
+    Bands may use up to this fraction of the heap, and always at least
+    MIN_PIXELS_PER_BAND pixels. Readers of png and jpg decode every row above
+    a band again each time a band is read, so the fewer bands the better.
+    */
+    private static final int HEAP_FRACTION_PER_BAND = 8;
+    private static final int MIN_PIXELS_PER_BAND = 1 << 22;
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int imageWidth, imageHeight;
+
+    //Size of the grid of blocks, and the side length of a block in decoded pixels
+    private int columns, rows;
+    private double blockSide;
+
+    //Size of the part of the image inside the render, pixels of it read across each decoded pixel, and its size once decoded
+    private int coveredWidth, coveredHeight;
+    private int subsampling;
+    private int decodedWidth, decodedHeight;
+
+    //Next row of blocks to be analyzed
+    private int nextRow;
+
+    //The decoded band, the decoded row at its top and the number of rows of it decoded
+    private BufferedImage band;
+    private int bandTop, bandRows;
+
+    //Time spent decoding bands, which isn't counted as time spent analyzing
+    private long decodingTime;
+
+    //A row of the band, and the weighted sums of each channel of every block of the row of blocks being analyzed
+    private int[] row;
+    private double[] red, green, blue;
+
+    /**
+     * Constructor for the TargetAnalyzer. Opens the image and reads its size, but none of its pixels.
+     * @param address Absolute path of the image
+     * @throws IOException
+     */
+    public TargetAnalyzer(String address) throws IOException {
+        this.input = ImageIO.createImageInputStream(new File(address));
+        if (input == null) throw new IOException("Can't open " + address);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No ImageReader can read " + address);
+        }
+        this.reader = readers.next();
+        reader.setInput(input, true, true);
+        try {
+            this.imageWidth = reader.getWidth(0);
+            this.imageHeight = reader.getHeight(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * Picks the grid of blocks analyzed, starting over from the top of the image.
+     * @param width Width of the render in pixels
+     * @param height Height of the render in pixels
+     * @param scaleFactor The side length, in pixels, of a block
+     * @param scale How much the image is scaled to the resolution of the render
+     */
+    public void setResolution(int width, int height, int scaleFactor, double scale) {
+        this.columns = width / scaleFactor;
+        this.rows = height / scaleFactor;
+        this.subsampling = Math.max(1, (int) (scaleFactor / scale / SAMPLES_PER_BLOCK));
+        this.blockSide = scaleFactor / scale / subsampling;
+
+        //Only the part of the image inside the render is decoded
+        this.coveredWidth = Math.min(imageWidth, (int) Math.ceil(width / scale));
+        this.coveredHeight = Math.min(imageHeight, (int) Math.ceil(height / scale));
+        this.decodedWidth = (coveredWidth + subsampling - 1) / subsampling;
+        this.decodedHeight = (coveredHeight + subsampling - 1) / subsampling;
+
+        this.nextRow = 0;
+        this.band = null;
+        this.bandTop = 0;
+        this.bandRows = 0;
+        this.row = new int[decodedWidth];
+        this.red = new double[columns];
+        this.green = new double[columns];
+        this.blue = new double[columns];
+    }
+
+    /**
+     * @return The number of rows of blocks still to be analyzed
+     */
+    public int getRowsLeft() {
+        return rows - nextRow;
+    }
+
+    /**
+     * Finds the average colors of the next rows of blocks.
+     * @param count Number of rows of blocks to analyze
+     * @param red Array the average red value of each block is written to, row by row
+     * @param green Array the average green value of each block is written to
+     * @param blue Array the average blue value of each block is written to
+     * @param offset Index in the arrays of the first block
+     * @throws IOException
+     */
+    public void readBlockRows(int count, int[] red, int[] green, int[] blue, int offset) throws IOException {
+        if (count > getRowsLeft()) throw new IllegalArgumentException("Can't analyze " + count + " more rows of blocks with " + getRowsLeft() + " rows left");
+        long analyzing = RenderMetrics.start();
+        decodingTime = 0;
+        for (int j = nextRow; j < nextRow + count; j++) {
+            analyzeRow(j, red, green, blue, offset + (j - nextRow) * columns);
+        }
+        nextRow += count;
+        if (analyzing != 0) RenderMetrics.add(RenderStage.ANALYZE, System.nanoTime() - analyzing - decodingTime, (long) count * columns);
+    }
+
+    /**
+     * Finds the average colors of one row of blocks.
+     */
+    private void analyzeRow(int j, int[] averageRed, int[] averageGreen, int[] averageBlue, int offset) throws IOException {
+        Arrays.fill(red, 0);
+        Arrays.fill(green, 0);
+        Arrays.fill(blue, 0);
+
+        //Decoded rows covered by the row of blocks, and how much of the blocks is covered by the image
+        double top = j * blockSide, bottom = top + blockSide;
+        double coveredTop = Math.min(top, decodedHeight), coveredBottom = Math.min(bottom, decodedHeight);
+        for (int y = (int) coveredTop; y < coveredBottom; y++) {
+            double rowWeight = Math.min(y + 1, coveredBottom) - Math.max(y, coveredTop);
+            if (rowWeight <= 0) continue;
+            readRow(y);
+            for (int i = 0; i < columns; i++) {
+                double left = Math.min(i * blockSide, decodedWidth), right = Math.min(left + blockSide, decodedWidth);
+                for (int x = (int) left; x < right; x++) {
+                    double weight = rowWeight * (Math.min(x + 1, right) - Math.max(x, left));
+                    int rgb = row[x];
+                    red[i] += weight * ((rgb >> 16) & 0xFF);
+                    green[i] += weight * ((rgb >> 8) & 0xFF);
+                    blue[i] += weight * (rgb & 0xFF);
+                }
+            }
+        }
+
+        //Any part of a block outside the image is white
+        double area = blockSide * blockSide;
+        double coveredRows = coveredBottom - coveredTop;
+        for (int i = 0; i < columns; i++) {
+            double left = Math.min(i * blockSide, decodedWidth), right = Math.min(left + blockSide, decodedWidth);
+            double white = 255 * (area - (right - left) * coveredRows);
+            averageRed[offset + i] = (int) Math.round((red[i] + white) / area);
+            averageGreen[offset + i] = (int) Math.round((green[i] + white) / area);
+            averageBlue[offset + i] = (int) Math.round((blue[i] + white) / area);
+        }
+    }
+
+    /**
+     * Reads a decoded row of the image into the row buffer as packed RGB values, decoding the band it is in if it hasn't been decoded yet.
+     * Transparent pixels are blended onto white, like the white image FrameRender2.fitToResolution pastes frames onto.
+     */
+    private void readRow(int y) throws IOException {
+        if (band == null || y < bandTop || y >= bandTop + bandRows) decodeBand(y);
+        band.getRGB(0, y - bandTop, decodedWidth, 1, row, 0, decodedWidth);
+        for (int x = 0; x < decodedWidth; x++) {
+            int argb = row[x];
+            int alpha = argb >>> 24;
+            if (alpha == 255) continue;
+            int r = ((argb >> 16) & 0xFF) * alpha / 255 + 255 - alpha;
+            int g = ((argb >> 8) & 0xFF) * alpha / 255 + 255 - alpha;
+            int b = (argb & 0xFF) * alpha / 255 + 255 - alpha;
+            row[x] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Decodes the band of the image starting at a decoded row.
+     */
+    private void decodeBand(int y) throws IOException {
+        long decoding = RenderMetrics.start();
+        //Assumes 4 bytes per pixel, the most any type of image read takes
+        long pixelsPerBand = Math.max(MIN_PIXELS_PER_BAND, Runtime.getRuntime().maxMemory() / HEAP_FRACTION_PER_BAND / 4);
+        int maxRows = (int) Math.max(1, Math.min(Integer.MAX_VALUE, pixelsPerBand / Math.max(decodedWidth, 1)));
+        if (band == null) {
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            band = type.createBufferedImage(decodedWidth, Math.min(maxRows, decodedHeight));
+        }
+        bandTop = y;
+        bandRows = Math.min(band.getHeight(), decodedHeight - y);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        int sourceTop = y * subsampling;
+        param.setSourceRegion(new Rectangle(0, sourceTop, coveredWidth, Math.min(bandRows * subsampling, coveredHeight - sourceTop)));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        param.setDestination(band);
+        reader.read(0, param);
+        if (decoding != 0) {
+            long time = System.nanoTime() - decoding;
+            decodingTime += time;
+            RenderMetrics.add(RenderStage.DECODE, time, 0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
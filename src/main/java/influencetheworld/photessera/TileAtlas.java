@@ -0,0 +1,207 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The pixels of every PhotoPixel of a TileLibrary packed one after another
+ * outside the heap. Keeping every PhotoPixel as its own BufferedImage costs
+ * two objects, a raster and an array each, which with libraries of hundreds
+ * of thousands of photos fills the heap with long lived objects the garbage
+ * collector has to trace on every full collection. The atlas keeps them all
+ * as rows of BGR bytes in a few direct ByteBuffers instead, so a library of a
+ * million 10 x 10 PhotoPixels is 300MB of native memory and no objects.
+ *
+ * Segments hold as many PhotoPixels as fit in a gigabyte, so PhotoPixel n is
+ * the tileWidth x tileHeight x 3 bytes at (n % tilesPerSegment) x tileBytes in
+ * segment n / tilesPerSegment. Direct memory is limited to the size of the
+ * heap unless the JVM is started with -XX:MaxDirectMemorySize, which has to
+ * be raised when the heap is kept smaller than the library.
+ *
+ * PhotoPixels are added from one thread at a time. Once the atlas is filled
+ * any number of threads can read from it at once.
+ */
+public class TileAtlas {
+
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final int tileWidth, tileHeight, tileBytes;
+    private final int tilesPerSegment;
+
+    //Every segment but the last is full. The last one grows until it holds tilesPerSegment PhotoPixels
+    private ByteBuffer[] segments;
+    private int size;
+
+    /**
+     * Constructor for an empty TileAtlas.
+     * @param tileWidth Width of every PhotoPixel
+     * @param tileHeight Height of every PhotoPixel
+     * @param capacity Number of PhotoPixels expected to be added. The atlas grows past it if needed.
+     */
+    public TileAtlas(int tileWidth, int tileHeight, int capacity) {
+        if (tileWidth <= 0 || tileHeight <= 0) throw new IllegalArgumentException("Can't make an atlas of " + tileWidth + " x " + tileHeight + " PhotoPixels");
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tileBytes = tileWidth * tileHeight * 3;
+        this.tilesPerSegment = Math.max(MAX_SEGMENT_BYTES / tileBytes, 1);
+        this.segments = new ByteBuffer[] {ByteBuffer.allocateDirect(Math.min(Math.max(capacity, 1), tilesPerSegment) * tileBytes)};
+    }
+
+    /**
+     * Copies a PhotoPixel into the atlas.
+     * @param tile The PhotoPixel, which must be the size of every PhotoPixel of the atlas
+     * @return Index of the PhotoPixel in the atlas
+     */
+    public synchronized int add(BufferedImage tile) {
+        if (tile.getWidth() != tileWidth || tile.getHeight() != tileHeight) {
+            throw new IllegalArgumentException("A " + tile.getWidth() + " x " + tile.getHeight() + " PhotoPixel can't be added to an atlas of " + tileWidth + " x " + tileHeight + " ones");
+        }
+
+        ByteBuffer view = reserve();
+        int[] row = new int[tileWidth];
+        byte[] bgr = new byte[tileWidth * 3];
+        for (int y = 0; y < tileHeight; y++) {
+            tile.getRGB(0, y, tileWidth, 1, row, 0, tileWidth);
+            for (int x = 0, b = 0; x < tileWidth; x++) {
+                bgr[b++] = (byte) row[x];
+                bgr[b++] = (byte) (row[x] >> 8);
+                bgr[b++] = (byte) (row[x] >> 16);
+            }
+            view.put(bgr);
+        }
+        return size++;
+    }
+
+    /**
+     * Copies a PhotoPixel which is already in the atlas's format into the atlas.
+     * @param bgr The pixels of the PhotoPixel, row by row, as blue, green and red bytes
+     * @return Index of the PhotoPixel in the atlas
+     */
+    public synchronized int add(byte[] bgr) {
+        if (bgr.length != tileBytes) {
+            throw new IllegalArgumentException(bgr.length + " bytes can't be added to an atlas of " + tileWidth + " x " + tileHeight + " PhotoPixels");
+        }
+        reserve().put(bgr);
+        return size++;
+    }
+
+    /**
+     * Makes room for the next PhotoPixel, growing the last segment or starting a new one if it is full.
+     * @return A view of the segment positioned at the start of the next PhotoPixel
+     */
+    private ByteBuffer reserve() {
+        int segmentIndex = size / tilesPerSegment;
+        if (segmentIndex == segments.length) {
+            segments = Arrays.copyOf(segments, segmentIndex + 1);
+            segments[segmentIndex] = ByteBuffer.allocateDirect(Math.min(size, tilesPerSegment) * tileBytes);
+        }
+        ByteBuffer segment = segments[segmentIndex];
+        int position = (size % tilesPerSegment) * tileBytes;
+        if (position == segment.capacity()) {
+            //The last segment is doubled until it is full size
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.min(2 * segment.capacity(), tilesPerSegment * tileBytes));
+            ByteBuffer old = segment.duplicate();
+            ((Buffer) old).clear();
+            grown.put(old);
+            segments[segmentIndex] = segment = grown;
+        }
+
+        ByteBuffer view = segment.duplicate();
+        ((Buffer) view).position(position);
+        return view;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Copies part of a PhotoPixel into an array of BGR bytes, such as the data of a TYPE_3BYTE_BGR raster.
+     * @param index Index of the PhotoPixel
+     * @param x X coordinate of the left of the part copied
+     * @param y Y coordinate of the top of the part copied
+     * @param width Width of the part copied
+     * @param height Height of the part copied
+     * @param bgr Array the bytes are copied into
+     * @param offset Position in the array of the top left pixel of the part
+     * @param stride Distance in the array between the starts of two rows
+     */
+    public void getBGR(int index, int x, int y, int width, int height, byte[] bgr, int offset, int stride) {
+        ByteBuffer view = segments[index / tilesPerSegment].duplicate();
+        int position = (index % tilesPerSegment) * tileBytes + (y * tileWidth + x) * 3;
+        for (int row = 0; row < height; row++, position += tileWidth * 3, offset += stride) {
+            ((Buffer) view).position(position);
+            view.get(bgr, offset, width * 3);
+        }
+    }
+
+    /**
+     * Copies part of a PhotoPixel into an array of packed opaque ARGB values, as returned by BufferedImage.getRGB.
+     * @param index Index of the PhotoPixel
+     * @param x X coordinate of the left of the part copied
+     * @param y Y coordinate of the top of the part copied
+     * @param width Width of the part copied
+     * @param height Height of the part copied
+     * @param rgb Array the pixels are copied into
+     * @param offset Position in the array of the top left pixel of the part
+     * @param stride Distance in the array between the starts of two rows
+     */
+    public void getRGB(int index, int x, int y, int width, int height, int[] rgb, int offset, int stride) {
+        ByteBuffer view = segments[index / tilesPerSegment].duplicate();
+        int position = (index % tilesPerSegment) * tileBytes + (y * tileWidth + x) * 3;
+        byte[] bgr = new byte[width * 3];
+        for (int row = 0; row < height; row++, position += tileWidth * 3, offset += stride) {
+            ((Buffer) view).position(position);
+            view.get(bgr);
+            for (int i = 0, b = 0; i < width; i++, b += 3) {
+                rgb[offset + i] = 0xFF000000 | (bgr[b + 2] & 0xFF) << 16 | (bgr[b + 1] & 0xFF) << 8 | (bgr[b] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Calculates the average color of a PhotoPixel the same way PhotoPixel.getAverageColor analyzes an image.
+     * @param index Index of the PhotoPixel
+     * @param color_RGB Array of length 3 which the average red, green and blue values are written to
+     */
+    public void getAverageColor(int index, int[] color_RGB) {
+        ByteBuffer segment = segments[index / tilesPerSegment];
+        int start = (index % tilesPerSegment) * tileBytes;
+        int step = PhotoPixel.NUMBER_OF_PIXELS_PER_ANALYZED_PIXEL;
+        int red = 0, green = 0, blue = 0;
+        for (int j = 0; j < tileHeight; j++) {
+            for (int i = j % step; i < tileWidth; i += step) {
+                int b = start + (j * tileWidth + i) * 3;
+                blue += segment.get(b) & 0xFF;
+                green += segment.get(b + 1) & 0xFF;
+                red += segment.get(b + 2) & 0xFF;
+            }
+        }
+        int analyzedPixels = Math.max((tileWidth * tileHeight) / step, 1);
+        color_RGB[0] = red / analyzedPixels;
+        color_RGB[1] = green / analyzedPixels;
+        color_RGB[2] = blue / analyzedPixels;
+    }
+
+    /**
+     * Copies a PhotoPixel out of the atlas.
+     * @param index Index of the PhotoPixel
+     * @return A new TYPE_3BYTE_BGR image of the PhotoPixel
+     */
+    public BufferedImage getImage(int index) {
+        BufferedImage image = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
+        getBGR(index, 0, 0, tileWidth, tileHeight, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, tileWidth * 3);
+        return image;
+    }
+}
@@ -0,0 +1,79 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Draws PhotoPixels by copying their pixels straight into the DataBuffer of
+ * the image they are drawn on. Graphics2D.drawImage converts every pixel of a
+ * PhotoPixel whose image type differs from the output's, which for photos is
+ * most of them, so PhotoPixels are drawn a row at a time from the BGR bytes
+ * of the library's TileAtlas instead.
+ *
+ * TYPE_3BYTE_BGR images are copied into directly and TYPE_INT_RGB images are
+ * written as each row is converted. Images of any other type are written
+ * through setRGB. Nothing is shared between calls but the atlas, which is
+ * only read from, so any number of threads can draw at once as long as they
+ * draw onto disjoint areas of an image.
+ */
+public class TileBlitter {
+
+    private final int size, tileWidth, tileHeight;
+    private final TileAtlas atlas;
+
+    /**
+     * Constructor for the TileBlitter.
+     * @param atlas The images of every PhotoPixel of a TileLibrary, or null if the library is empty
+     * @param size Number of PhotoPixels in the library
+     */
+    TileBlitter(TileAtlas atlas, int size) {
+        this.size = size;
+        this.atlas = atlas;
+        this.tileWidth = atlas == null ? 0 : atlas.getTileWidth();
+        this.tileHeight = atlas == null ? 0 : atlas.getTileHeight();
+    }
+
+    /**
+     * Draws a PhotoPixel onto an image. Any part of it outside the image is left out.
+     * @param output The image the PhotoPixel is drawn on
+     * @param index Index in the TileLibrary of the PhotoPixel
+     * @param x X coordinate of the top left corner of the PhotoPixel
+     * @param y Y coordinate of the top left corner of the PhotoPixel
+     */
+    public void draw(BufferedImage output, int index, int x, int y) {
+        //The part of the PhotoPixel inside the image
+        int left = Math.max(0, -x), top = Math.max(0, -y);
+        int right = Math.min(tileWidth, output.getWidth() - x), bottom = Math.min(tileHeight, output.getHeight() - y);
+        if (left >= right || top >= bottom) return;
+        int width = right - left;
+
+        WritableRaster raster = output.getRaster();
+        int rasterX = x + left - raster.getSampleModelTranslateX();
+        int rasterY = y + top - raster.getSampleModelTranslateY();
+        int type = output.getType();
+
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("No PhotoPixel " + index + " in a library of " + size);
+
+        if (type == BufferedImage.TYPE_3BYTE_BGR && raster.getDataBuffer() instanceof DataBufferByte) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = sampleModel.getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset() + rasterY * stride + rasterX * 3;
+            atlas.getBGR(index, left, top, width, bottom - top, data, offset, stride);
+        } else if (type == BufferedImage.TYPE_INT_RGB && raster.getDataBuffer() instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = sampleModel.getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset() + rasterY * stride + rasterX;
+            atlas.getRGB(index, left, top, width, bottom - top, data, offset, stride);
+        } else {
+            int[] rgb = new int[width * (bottom - top)];
+            atlas.getRGB(index, left, top, width, bottom - top, rgb, 0, width);
+            output.setRGB(x + left, y + top, width, bottom - top, rgb, 0, width);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package influencetheworld.photessera;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Installs a set of photos as PhotoPixels. Photos are decoded on a pool of
+ * worker threads, and only the pixels needed for the square crop at the
+ * PhotoPixel's size are decoded. A photo many times larger than a PhotoPixel
+ * is read with source subsampling, so the decoder skips most of its pixels.
+ *
+ * Only a few photos per worker are decoded ahead of the one being added to the
+ * library, which keeps memory bounded no matter how many photos are selected
+ * and keeps the PhotoPixels in the same order as the photos.
+ */
+public class TileIngester {
+
+    //Number of photos each worker may decode ahead of the library
+    private static final int PHOTOS_IN_FLIGHT_PER_THREAD = 2;
+
+    /**
+     * Installs every supported photo as a PhotoPixel, reusing PhotoPixels from a cache when they are up to date.
+     * @param pixelPhotoAddresses Absolute paths of the photos
+     * @param scaleFactor The side length, in pixels, of each PhotoPixel
+     * @param cache Cache to reuse PhotoPixels from and remember new ones in, or null
+     * @param threads Number of photos decoded at once
+     * @return A TileLibrary holding a PhotoPixel for every photo that could be installed, in the order of the photos
+     * @throws IOException
+     */
+    public static TileLibrary ingest(List<String> pixelPhotoAddresses, int scaleFactor, TileLibraryCache cache, int threads) throws IOException {
+        return ingest(pixelPhotoAddresses, new int[]{scaleFactor}, new TileLibraryCache[]{cache}, threads)[0];
+    }
+
+    /**
+     * Installs every supported photo as a PhotoPixel at several sizes at once. Each
+     * photo is decoded a single time, at the largest size that isn't cached, and the
+     * smaller sizes are downscaled from it.
+     * @param pixelPhotoAddresses Absolute paths of the photos
+     * @param scaleFactors The side lengths, in pixels, of the PhotoPixels
+     * @param caches Cache for each size to reuse PhotoPixels from and remember new ones in. Any of them may be null
+     * @param threads Number of photos decoded at once
+     * @return A TileLibrary for each size, each holding a PhotoPixel for the same photos in the same order
+     * @throws IOException
+     */
+    public static TileLibrary[] ingest(List<String> pixelPhotoAddresses, final int[] scaleFactors, final TileLibraryCache[] caches, int threads) throws IOException {
+        long start = System.nanoTime();
+        long ingesting = RenderMetrics.start();
+        RenderEvents.TileLibraryIngest event = RenderEvents.ENABLED ? new RenderEvents.TileLibraryIngest() : null;
+        if (event != null) event.begin();
+        TileLibrary[] libraries = new TileLibrary[scaleFactors.length];
+        for (int s = 0; s < scaleFactors.length; s++) {
+            libraries[s] = new TileLibrary(pixelPhotoAddresses.size());
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayDeque<Future<Tile>> inFlight = new ArrayDeque<Future<Tile>>();
+        int window = Math.max(threads, 1) * PHOTOS_IN_FLIGHT_PER_THREAD;
+        int total = pixelPhotoAddresses.size();
+        int installed = 0;
+        int decoded = 0;
+
+        try {
+            Iterator<String> addresses = pixelPhotoAddresses.iterator();
+            int submitted = 0;
+            while (addresses.hasNext() || !inFlight.isEmpty()) {
+                //Keep the workers busy, but never more than a few photos ahead of the library
+                while (addresses.hasNext() && inFlight.size() < window) {
+                    final String address = addresses.next();
+                    final int photoIndex = submitted++;
+                    inFlight.add(workers.submit(new Callable<Tile>() {
+                        @Override
+                        public Tile call() throws IOException {
+                            return loadTile(address, photoIndex, scaleFactors, caches);
+                        }
+                    }));
+                }
+
+                Tile tile = await(inFlight.poll());
+                if (tile == null) {
+                    total--;
+                } else {
+                    for (int s = 0; s < scaleFactors.length; s++) {
+                        int[] color_RGB = tile.colors_RGB[s];
+                        int index = tile.pixels[s] != null
+                                ? libraries[s].add(tile.pixels[s], scaleFactors[s], scaleFactors[s], color_RGB[0], color_RGB[1], color_RGB[2])
+                                : libraries[s].add(tile.images[s]);
+                        if (caches[s] != null) caches[s].put(tile.address, tile.length, tile.lastModified, libraries[s], index);
+                    }
+                    if (tile.decoded) decoded++;
+                    installed++;
+                }
+                RenderProgress.setProgressMessage(installed + "/" + total + " PhotoPixels Installed");
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        RenderMetrics.record(RenderStage.INGEST, ingesting, installed);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.photos = pixelPhotoAddresses.size();
+                event.installed = installed;
+                event.decoded = decoded;
+                event.scaleFactors = Arrays.toString(scaleFactors);
+                event.commit();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Installed %d PhotoPixels at %s px (%d decoded, %d from cache) in %.2fs: %.1f photos/sec",
+                installed, Arrays.toString(scaleFactors), decoded, installed - decoded, seconds, installed / Math.max(seconds, 1e-9)));
+        return libraries;
+    }
+
+    /**
+     * Decodes the square at the top left of a photo and downscales it to the size of a PhotoPixel.
+     * @param photoAddress The directory address for a photo.
+     * @param scaleFactor The side length, in pixels, of the PhotoPixel
+     * @return A BufferedImage of the downscaled photo (now a pixel), or null if the file isn't a supported photo.
+     * @throws IOException
+     */
+    public static BufferedImage decodeTile(String photoAddress, int scaleFactor) throws IOException {
+        String extension = photoAddress.substring(photoAddress.lastIndexOf(".") + 1).toLowerCase();
+        if (!extension.equals("jpg") && !extension.equals("png") && !extension.equals("jpeg")) {
+            return null;
+        }
+
+        ImageInputStream input = ImageIO.createImageInputStream(new File(photoAddress));
+        if (input == null) return null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int sideLength = Math.min(reader.getWidth(0), reader.getHeight(0));
+
+                //Skip every pixel that a nearest neighbour downscale would never look at
+                int period = Math.max(sideLength / scaleFactor, 1);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, 0, sideLength, sideLength));
+                param.setSourceSubsampling(period, period, 0, 0);
+                BufferedImage crop = reader.read(0, param);
+
+                return resizeTile(crop, scaleFactor);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Rescales a PhotoPixel to another size using nearest neighbour sampling.
+     * @param tile A PhotoPixel's image
+     * @param scaleFactor The side length, in pixels, of the new PhotoPixel
+     * @return The rescaled image
+     */
+    public static BufferedImage resizeTile(BufferedImage tile, int scaleFactor) {
+        if (tile.getWidth() == scaleFactor && tile.getHeight() == scaleFactor) return tile;
+        int type = tile.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_3BYTE_BGR : tile.getType();
+        BufferedImage after = new BufferedImage(scaleFactor, scaleFactor, type);
+        Graphics2D graphics = after.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        graphics.drawImage(tile, 0, 0, scaleFactor, scaleFactor, null);
+        graphics.dispose();
+        return after;
+    }
+
+    /**
+     * A photo's PhotoPixels at every size, ready to be added to the libraries.
+     */
+    private static class Tile {
+        final String address;
+
+        //Each size is either BGR pixels from a cache, added straight to the library's atlas, or a decoded image
+        final byte[][] pixels;
+        final BufferedImage[] images;
+
+        //Size and last modified time of the photo's file before anything was read from it
+        final long length, lastModified;
+
+        //Average colors of PhotoPixels that came from a cache, null for ones which still have to be analyzed
+        final int[][] colors_RGB;
+        final boolean decoded;
+
+        Tile(String address, byte[][] pixels, BufferedImage[] images, long length, long lastModified, int[][] colors_RGB, boolean decoded) {
+            this.address = address;
+            this.pixels = pixels;
+            this.images = images;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.colors_RGB = colors_RGB;
+            this.decoded = decoded;
+        }
+    }
+
+    private static Tile loadTile(String address, int photoIndex, int[] scaleFactors, TileLibraryCache[] caches) {
+        //A photo changed while it is being decoded is cached under its old size and time, so it is installed again next time
+        File photo = new File(address);
+        long length = photo.length(), lastModified = photo.lastModified();
+        byte[][] pixels = new byte[scaleFactors.length][];
+        BufferedImage[] images = new BufferedImage[scaleFactors.length];
+        int[][] colors_RGB = new int[scaleFactors.length][];
+        int largestMissing = 0;
+        for (int s = 0; s < scaleFactors.length; s++) {
+            if (caches[s] != null) {
+                int[] color_RGB = new int[3];
+                pixels[s] = caches[s].getTile(address, length, lastModified, color_RGB);
+                if (pixels[s] != null) colors_RGB[s] = color_RGB;
+            }
+            if (pixels[s] == null) largestMissing = Math.max(largestMissing, scaleFactors[s]);
+        }
+        if (largestMissing == 0) return new Tile(address, pixels, images, length, lastModified, colors_RGB, false);
+
+        try {
+            RenderEvents.TileDecode event = RenderEvents.ENABLED ? new RenderEvents.TileDecode() : null;
+            if (event != null) event.begin();
+            BufferedImage image = decodeTile(address, largestMissing);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.photoIndex = photoIndex;
+                    event.photoAddress = address;
+                    event.scaleFactor = largestMissing;
+                    event.fileBytes = new File(address).length();
+                    event.decodedBytes = image == null ? 0 : RenderEvents.size(image);
+                    event.commit();
+                }
+            }
+            if (image == null) return null;
+            for (int s = 0; s < scaleFactors.length; s++) {
+                if (pixels[s] == null) images[s] = resizeTile(image, scaleFactors[s]);
+            }
+            System.out.println(address + " Installed");
+            return new Tile(address, pixels, images, length, lastModified, colors_RGB, true);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Unable to install " + address + ": " + e);
+            return null;
+        }
+    }
+
+    private static Tile await(Future<Tile> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while installing PhotoPixels", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to install PhotoPixel", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package influencetheworld.photessera;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * The set of PhotoPixels a frame is reconstructed from. The color of every
+ * PhotoPixel is kept in flat primitive columns indexed by the PhotoPixel's
+ * position in the library, so matching a block of the frame never allocates
+ * or boxes anything. The rescaled images are packed into a TileAtlas outside
+ * the heap, so the heap holds no objects per PhotoPixel at all.
+ */
+public class TileLibrary {
+
+    private int size;
+    private int[] avgRed, avgGreen, avgBlue, brightness;
+
+    //Made when the first PhotoPixel is added, once the size of the PhotoPixels is known
+    private TileAtlas atlas;
+    private final int initialCapacity;
+
+    //Built the first time they are needed, after the library has been filled
+    private volatile PhotoPixelTree tree;
+    private volatile ColorCube colorCube;
+    private volatile int[] brightnessOrder;
+    private volatile TileBlitter blitter;
+
+    /**
+     * Constructor for an empty TileLibrary.
+     * @param capacity Number of PhotoPixels expected to be added. The library grows past it if needed.
+     */
+    public TileLibrary(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.avgRed = new int[capacity];
+        this.avgGreen = new int[capacity];
+        this.avgBlue = new int[capacity];
+        this.brightness = new int[capacity];
+        this.initialCapacity = capacity;
+    }
+
+    /**
+     * Adds a rescaled photo to the library, analyzing its average color.
+     * @param tile The photo, already cropped and rescaled to the size of a block
+     * @return Index of the new PhotoPixel
+     */
+    public synchronized int add(BufferedImage tile) {
+        int index = add(tile, 0, 0, 0);
+        int[] color = new int[3];
+        atlas.getAverageColor(index, color);
+        avgRed[index] = color[0];
+        avgGreen[index] = color[1];
+        avgBlue[index] = color[2];
+        brightness[index] = (color[0] + color[1] + color[2]) / 3;
+        return index;
+    }
+
+    /**
+     * Adds a rescaled photo to the library whose average color is already known.
+     * The photo is copied into the library's TileAtlas, so it can be thrown away once added.
+     * @param tile The photo, which must be the same size as every other PhotoPixel of the library
+     * @return Index of the new PhotoPixel
+     */
+    public synchronized int add(BufferedImage tile, int red, int green, int blue) {
+        getAtlas(tile.getWidth(), tile.getHeight()).add(tile);
+        return addColor(red, green, blue);
+    }
+
+    /**
+     * Adds a PhotoPixel given as raw pixels, such as ones read from a TileLibraryCache,
+     * whose average color is already known. The pixels are copied straight into the library's TileAtlas.
+     * @param bgr The pixels of the PhotoPixel, row by row, as blue, green and red bytes
+     * @param tileWidth Width of the PhotoPixel, which must be the same as every other PhotoPixel of the library
+     * @param tileHeight Height of the PhotoPixel
+     * @return Index of the new PhotoPixel
+     */
+    public synchronized int add(byte[] bgr, int tileWidth, int tileHeight, int red, int green, int blue) {
+        getAtlas(tileWidth, tileHeight).add(bgr);
+        return addColor(red, green, blue);
+    }
+
+    /**
+     * Gets the atlas PhotoPixels of a size are added to, making it for the first PhotoPixel.
+     */
+    private TileAtlas getAtlas(int tileWidth, int tileHeight) {
+        if (atlas == null) atlas = new TileAtlas(tileWidth, tileHeight, initialCapacity);
+        if (atlas.getTileWidth() != tileWidth || atlas.getTileHeight() != tileHeight) {
+            throw new IllegalArgumentException("A " + tileWidth + " x " + tileHeight + " PhotoPixel can't be added to a library of " + atlas.getTileWidth() + " x " + atlas.getTileHeight() + " ones");
+        }
+        return atlas;
+    }
+
+    /**
+     * Adds the average color of the PhotoPixel just added to the atlas.
+     * @return Index of the new PhotoPixel
+     */
+    private int addColor(int red, int green, int blue) {
+        if (size == avgRed.length) {
+            int capacity = size * 2;
+            avgRed = Arrays.copyOf(avgRed, capacity);
+            avgGreen = Arrays.copyOf(avgGreen, capacity);
+            avgBlue = Arrays.copyOf(avgBlue, capacity);
+            brightness = Arrays.copyOf(brightness, capacity);
+        }
+        avgRed[size] = red;
+        avgGreen[size] = green;
+        avgBlue[size] = blue;
+        brightness[size] = (red + green + blue) / 3;
+
+        //The search structures no longer cover every PhotoPixel
+        tree = null;
+        colorCube = null;
+        brightnessOrder = null;
+        blitter = null;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRed(int index) {
+        return avgRed[index];
+    }
+
+    public int getGreen(int index) {
+        return avgGreen[index];
+    }
+
+    public int getBlue(int index) {
+        return avgBlue[index];
+    }
+
+    public int getBrightness(int index) {
+        return brightness[index];
+    }
+
+    /**
+     * Copies the image of a PhotoPixel out of the library's TileAtlas.
+     * @return A new TYPE_3BYTE_BGR image of the PhotoPixel
+     */
+    public BufferedImage getTile(int index) {
+        return atlas.getImage(index);
+    }
+
+    /**
+     * @return The TileAtlas holding the images of every PhotoPixel in the library, or null if the library is empty
+     */
+    public TileAtlas getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * Finds the PhotoPixel closest to a color by checking every PhotoPixel in the library.
+     * @return Index of the closest PhotoPixel, preferring the lowest index on ties
+     */
+    public int getMostSimilarLinear(int r, int g, int b) {
+        int[] red = avgRed, green = avgGreen, blue = avgBlue;
+        int minimum = Integer.MAX_VALUE;
+        int minIndex = 0;
+        for (int i = 0; i < size; i++) {
+            int dr = r - red[i], dg = g - green[i], db = b - blue[i];
+            int squareDifference = dr * dr + dg * dg + db * db;
+            if (squareDifference < minimum) {
+                minimum = squareDifference;
+                minIndex = i;
+            }
+        }
+        return minIndex;
+    }
+
+    /**
+     * Gets the tree over the library, building it the first time it is needed.
+     * @return PhotoPixelTree over every PhotoPixel in the library
+     */
+    public PhotoPixelTree getTree() {
+        PhotoPixelTree built = tree;
+        if (built == null) {
+            synchronized (this) {
+                if (tree == null) {
+                    tree = new PhotoPixelTree(avgRed, avgGreen, avgBlue, size);
+                }
+                built = tree;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Gets the ColorCube over the library, building it the first time it is
+     * needed or when a different resolution is asked for.
+     * @param bitsPerChannel Resolution of the cube
+     * @return ColorCube over every PhotoPixel in the library
+     */
+    public ColorCube getColorCube(int bitsPerChannel) {
+        ColorCube built = colorCube;
+        if (built == null || built.getBitsPerChannel() != bitsPerChannel) {
+            synchronized (this) {
+                if (colorCube == null || colorCube.getBitsPerChannel() != bitsPerChannel) {
+                    System.out.println("Building " + (1 << bitsPerChannel) + "^3 Color Cube...");
+                    colorCube = new ColorCube(getTree(), bitsPerChannel);
+                }
+                built = colorCube;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Gets the PhotoPixels ordered from darkest to brightest, sorting them the
+     * first time they are needed. The sort is a counting sort over the 256
+     * possible brightnesses, and PhotoPixels of the same brightness stay in the
+     * order they were added.
+     * @return Indexes of every PhotoPixel in the library, by brightness. Must not be changed
+     */
+    public int[] getBrightnessOrder() {
+        int[] built = brightnessOrder;
+        if (built == null) {
+            synchronized (this) {
+                if (brightnessOrder == null) {
+                    brightnessOrder = countingSort(brightness, size);
+                }
+                built = brightnessOrder;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Gets the TileBlitter over the library, creating it the first time it is needed.
+     * @return TileBlitter which draws every PhotoPixel in the library
+     */
+    public TileBlitter getBlitter() {
+        TileBlitter built = blitter;
+        if (built == null) {
+            synchronized (this) {
+                if (blitter == null) {
+                    blitter = new TileBlitter(atlas, size);
+                }
+                built = blitter;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Sorts values from 0 to 255 without comparing them.
+     * @param values The values being sorted, which are left as they are
+     * @param length Number of values at the start of the array to sort
+     * @return Indexes of the values from smallest to largest, keeping equal values in their original order
+     */
+    static int[] countingSort(int[] values, int length) {
+        int[] start = new int[257];
+        for (int i = 0; i < length; i++) {
+            start[values[i] + 1]++;
+        }
+        for (int v = 1; v < start.length; v++) {
+            start[v] += start[v - 1];
+        }
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++) {
+            order[start[values[i]]++] = i;
+        }
+        return order;
+    }
+}
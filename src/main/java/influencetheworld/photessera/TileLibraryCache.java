@@ -0,0 +1,287 @@
+package influencetheworld.photessera;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file which remembers the PhotoPixels made from a set of photos at one
+ * scale factor, so later renders can skip decoding and rescaling every photo.
+ *
+ * Each photo is remembered along with its size and last modified time. A
+ * photo is only reused from the cache if both still match the file on disk;
+ * photos that changed or are new are installed normally and the cache is
+ * rewritten. Tiles are stored as fixed size records of raw TYPE_3BYTE_BGR
+ * bytes after the table of photos, starting at an aligned offset. Only the
+ * table is read up front; the file is kept open and each record is read
+ * when its photo is installed and copied straight into the TileAtlas of the
+ * library, so the tiles are never held in memory twice. The cache has to be
+ * closed once the library is installed.
+ *
+ * File layout:
+ *   int magic, int version, int scaleFactor, int photoCount, long dataOffset
+ *   photoCount x (short pathLength, UTF-8 path, long length, long lastModified, int record)
+ *   padding up to dataOffset
+ *   records of (byte avgRed, byte avgGreen, byte avgBlue, scaleFactor^2 x 3 bytes of blue, green, red)
+ */
+public class TileLibraryCache implements Closeable {
+
+    private static final int MAGIC = 0x50544C43; //PTLC
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final int scaleFactor;
+    private final int recordSize;
+
+    //Photos read from the cache file, by address
+    private final Map<String, Entry> cached = new HashMap<String, Entry>();
+
+    //The cache file, kept open while photos are installed so records are read as they are needed
+    private RandomAccessFile records;
+    private FileChannel channel;
+    private long dataOffset;
+
+    //Photos that will be written the next time the cache is saved, in library order
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private boolean changed;
+
+    private static class Entry {
+        final String address;
+        final long length, lastModified;
+        final int record;
+
+        //The PhotoPixel is read back out of the library's TileAtlas when the cache is saved
+        final TileLibrary library;
+        final int index;
+        final int red, green, blue;
+
+        Entry(String address, long length, long lastModified, int record, TileLibrary library, int index, int red, int green, int blue) {
+            this.address = address;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.record = record;
+            this.library = library;
+            this.index = index;
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        boolean matches(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * Opens the cache for a set of photos at a scale factor, reading it if it already exists.
+     * A cache file that can't be read is ignored and replaced when the cache is saved.
+     * @param cacheFolder Folder the cache files are kept in
+     * @param pixelPhotoAddresses Absolute paths of the photos the library is made from
+     * @param scaleFactor The side length, in pixels, of each PhotoPixel
+     */
+    public TileLibraryCache(File cacheFolder, List<String> pixelPhotoAddresses, int scaleFactor) {
+        this.file = new File(cacheFolder, "library-" + scaleFactor + "px-" + Integer.toHexString(pixelPhotoAddresses.hashCode()) + ".bin");
+        this.scaleFactor = scaleFactor;
+        this.recordSize = 3 + scaleFactor * scaleFactor * 3;
+        if (file.exists()) {
+            try {
+                read();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Ignoring unreadable tile cache " + file + ": " + e);
+                cached.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the PhotoPixel for a photo from the cache, if the cache holds an up to date one for it.
+     * Safe to call from several threads at once.
+     * @param address Absolute path of the photo
+     * @param length Size of the photo's file, read before anything else is read from it
+     * @param lastModified Last modified time of the photo's file, read before anything else is read from it
+     * @param color_RGB Array of length 3 which the average red, green and blue values of the PhotoPixel are written to
+     * @return The PhotoPixel's pixels as blue, green and red bytes, to be added with TileLibrary.add, or null if the photo has to be installed from scratch
+     */
+    public byte[] getTile(String address, long length, long lastModified, int[] color_RGB) {
+        Entry entry = cached.get(address);
+        if (entry == null || !entry.matches(length, lastModified)) {
+            return null;
+        }
+
+        //The color and the pixels are read separately so the pixels can be returned without copying them.
+        //Positional reads are used since other threads read from the channel at the same time
+        byte[] color = new byte[3];
+        byte[] pixels = new byte[recordSize - 3];
+        long position = dataOffset + (long) entry.record * recordSize;
+        try {
+            readFully(channel, ByteBuffer.wrap(color), position);
+            readFully(channel, ByteBuffer.wrap(pixels), position + 3);
+        } catch (IOException e) {
+            //The photo is decoded again instead, and the cache rewritten with it
+            System.out.println("Unable to read " + address + " from tile cache " + file + ": " + e);
+            return null;
+        }
+        color_RGB[0] = color[0] & 0xFF;
+        color_RGB[1] = color[1] & 0xFF;
+        color_RGB[2] = color[2] & 0xFF;
+        return pixels;
+    }
+
+    /**
+     * Remembers the PhotoPixel installed for a photo. Must be called for every
+     * PhotoPixel of the library, in the order they were added to the library.
+     * The size and last modified time of the photo must be the ones read before
+     * the photo was decoded, so a photo changed since then is installed again
+     * the next time instead of its old PhotoPixel being cached as the new one.
+     * @param address Absolute path of the photo
+     * @param length Size of the photo's file when it was decoded
+     * @param lastModified Last modified time of the photo's file when it was decoded
+     * @param library The library the PhotoPixel was added to
+     * @param index Index of the PhotoPixel in the library
+     */
+    public void put(String address, long length, long lastModified, TileLibrary library, int index) {
+        Entry old = cached.get(address);
+        if (old == null || !old.matches(length, lastModified) || old.record != entries.size()) {
+            changed = true;
+        }
+        entries.add(new Entry(address, length, lastModified, entries.size(), library, index,
+                library.getRed(index), library.getGreen(index), library.getBlue(index)));
+    }
+
+    /**
+     * Writes the cache back to disk if any photo had to be installed from scratch
+     * or if some of the cached photos are no longer part of the library.
+     * Closes the cache file first, as it can't be replaced while it is open on every OS.
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        close();
+        if (!changed && entries.size() == cached.size()) return;
+
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists()) folder.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(scaleFactor);
+            out.writeInt(entries.size());
+
+            //The table of photos has to be measured before the offset of the tiles is known
+            int tableSize = 0;
+            for (Entry entry : entries) {
+                tableSize += 2 + entry.address.getBytes(StandardCharsets.UTF_8).length + 8 + 8 + 4;
+            }
+            long dataOffset = align(24 + tableSize);
+            out.writeLong(dataOffset);
+
+            for (Entry entry : entries) {
+                byte[] path = entry.address.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.record);
+            }
+            for (long i = 24 + tableSize; i < dataOffset; i++) {
+                out.writeByte(0);
+            }
+
+            //Records hold the same BGR bytes as the atlas
+            byte[] pixels = new byte[scaleFactor * scaleFactor * 3];
+            for (Entry entry : entries) {
+                out.writeByte(entry.red);
+                out.writeByte(entry.green);
+                out.writeByte(entry.blue);
+                entry.library.getAtlas().getBGR(entry.index, 0, 0, scaleFactor, scaleFactor, pixels, 0, scaleFactor * 3);
+                out.write(pixels);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            temp.delete();
+            throw new IOException("Unable to replace tile cache " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to write tile cache " + file);
+        }
+        System.out.println("Saved " + entries.size() + " PhotoPixels to " + file);
+    }
+
+    /**
+     * Closes the cache file. Photos can't be read from the cache after it is closed.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (records == null) return;
+        try {
+            records.close();
+        } finally {
+            records = null;
+        }
+    }
+
+    private void read() throws IOException {
+        records = new RandomAccessFile(file, "r");
+        channel = records.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != scaleFactor) {
+                throw new IOException("Not a " + scaleFactor + "px tile cache");
+            }
+            int photoCount = header.getInt();
+            dataOffset = header.getLong();
+            if (photoCount < 0 || dataOffset < 24 || dataOffset - 24 > Integer.MAX_VALUE || dataOffset + (long) photoCount * recordSize > channel.size()) {
+                throw new IOException("Tile cache is truncated");
+            }
+
+            //Only the table of photos is read now, records are read one at a time by getTile
+            ByteBuffer table = ByteBuffer.allocate((int) (dataOffset - 24));
+            readFully(channel, table, 24);
+            for (int i = 0; i < photoCount; i++) {
+                byte[] path = new byte[table.getShort() & 0xFFFF];
+                table.get(path);
+                String address = new String(path, StandardCharsets.UTF_8);
+                long length = table.getLong();
+                long lastModified = table.getLong();
+                int record = table.getInt();
+                if (record < 0 || record >= photoCount) throw new IOException("Tile cache is corrupt");
+                cached.put(address, new Entry(address, length, lastModified, record, null, 0, 0, 0, 0));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Tile cache is truncated");
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+}
@@ -0,0 +1,205 @@
+package influencetheworld.photessera;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Installed TileLibraries shared by every render in the process. A set of
+ * photos is only installed once at each size, even when several renders ask
+ * for it at the same time; the first render installs it while the others wait
+ * for it. With pyramidScaleFactors set, every size of the pyramid is claimed
+ * before the photos are decoded, so a render asking for another size of it
+ * waits for the same install. Libraries are never changed once they are
+ * installed, so any number of renders can read them at once. They are kept
+ * until they're released or the store is cleared.
+ */
+public class TileLibraryStore {
+
+    //The store used by every render which isn't given its own
+    public static final TileLibraryStore SHARED = new TileLibraryStore();
+
+    //Number of photos decoded at once while installing PhotoPixels
+    public volatile int ingestThreads = Runtime.getRuntime().availableProcessors();
+
+    /*
+    Sizes of PhotoPixels installed together whenever photos are installed, so
+    the pixel size can be changed between renders without installing the
+    photos again. Null installs only the size being rendered.
+    */
+    public volatile int[] pyramidScaleFactors;
+
+    //Folder the PhotoPixels are cached in on disk, or null to not cache them
+    private volatile File cacheFolder;
+
+    private final Map<Key, Future<TileLibrary>> libraries = new HashMap<Key, Future<TileLibrary>>();
+
+    private static class Key {
+        final List<String> pixelPhotoAddresses;
+        final int scaleFactor;
+
+        Key(List<String> pixelPhotoAddresses, int scaleFactor) {
+            this.pixelPhotoAddresses = pixelPhotoAddresses;
+            this.scaleFactor = scaleFactor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return scaleFactor == key.scaleFactor && pixelPhotoAddresses.equals(key.pixelPhotoAddresses);
+        }
+
+        @Override
+        public int hashCode() {
+            return pixelPhotoAddresses.hashCode() * 31 + scaleFactor;
+        }
+    }
+
+    /**
+     * @param cacheFolderAddress Absolute path of the folder PhotoPixels are cached in on disk, or null to not cache them
+     */
+    public void setCacheFolder(String cacheFolderAddress) {
+        this.cacheFolder = cacheFolderAddress == null ? null : new File(cacheFolderAddress);
+    }
+
+    /**
+     * Gets the PhotoPixels of a set of photos at a size, installing them if no render has yet.
+     * @param pixelPhotoAddresses Absolute paths of the photos
+     * @param scaleFactor The side length, in pixels, of each PhotoPixel
+     * @return The installed TileLibrary, which must not be added to
+     * @throws IOException
+     */
+    public TileLibrary get(List<String> pixelPhotoAddresses, int scaleFactor) throws IOException {
+        final List<String> addresses = new ArrayList<String>(pixelPhotoAddresses);
+        final int size = scaleFactor;
+        Key key = new Key(addresses, scaleFactor);
+        //The sizes this render installs, and the pyramid they are taken from if there's one
+        Map<Key, FutureTask<TileLibrary>> installing = new HashMap<Key, FutureTask<TileLibrary>>();
+        FutureTask<TilePyramid> pyramid = null;
+        Future<TileLibrary> library;
+        synchronized (this) {
+            library = libraries.get(key);
+            if (library == null) {
+                int[] pyramidSizes = pyramidScaleFactors;
+                if (pyramidSizes == null) {
+                    installing.put(key, new FutureTask<TileLibrary>(new Callable<TileLibrary>() {
+                        @Override
+                        public TileLibrary call() throws IOException {
+                            return install(addresses, size);
+                        }
+                    }));
+                } else {
+                    pyramid = pyramid(addresses, scaleFactor, pyramidSizes, installing);
+                }
+                libraries.putAll(installing);
+                library = installing.get(key);
+            }
+        }
+        if (pyramid != null) pyramid.run();
+        for (FutureTask<TileLibrary> install : installing.values()) {
+            install.run();
+        }
+
+        try {
+            return library.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while installing PhotoPixels", e);
+        } catch (ExecutionException e) {
+            //Let a later render try again
+            synchronized (this) {
+                libraries.remove(key, library);
+                for (Map.Entry<Key, FutureTask<TileLibrary>> install : installing.entrySet()) {
+                    libraries.remove(install.getKey(), install.getValue());
+                }
+            }
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Unable to install PhotoPixels", e.getCause());
+        }
+    }
+
+    /**
+     * Forgets every installed library, so the photos are installed again the next time they're used.
+     */
+    public synchronized void clear() {
+        libraries.clear();
+    }
+
+    /**
+     * Forgets the libraries of a set of photos at every size. Their PhotoPixels are freed once no render is using them.
+     * @param pixelPhotoAddresses Absolute paths of the photos
+     */
+    public synchronized void release(List<String> pixelPhotoAddresses) {
+        Iterator<Key> keys = libraries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().pixelPhotoAddresses.equals(pixelPhotoAddresses)) keys.remove();
+        }
+    }
+
+    private TileLibrary install(List<String> addresses, int scaleFactor) throws IOException {
+        File folder = cacheFolder;
+        TileLibraryCache cache = folder == null ? null : new TileLibraryCache(folder, addresses, scaleFactor);
+        try {
+            TileLibrary library = TileIngester.ingest(addresses, scaleFactor, cache, ingestThreads);
+            if (cache != null) cache.save();
+            return library;
+        } finally {
+            if (cache != null) cache.close();
+        }
+    }
+
+    /**
+     * Plans the install of a set of photos at the size being rendered and every other size of the pyramid
+     * which isn't installed or being installed yet. Called while holding the lock on the store.
+     * @param addresses Absolute paths of the photos
+     * @param scaleFactor The size being rendered
+     * @param pyramidSizes The sizes of pyramidScaleFactors
+     * @param installing Receives a task for each size, which takes its library from the pyramid once it's built
+     * @return The task building the pyramid, which has to be run before the tasks of the sizes
+     */
+    private FutureTask<TilePyramid> pyramid(final List<String> addresses, int scaleFactor, int[] pyramidSizes, Map<Key, FutureTask<TileLibrary>> installing) {
+        TreeSet<Integer> sizes = new TreeSet<Integer>();
+        sizes.add(scaleFactor);
+        for (int size : pyramidSizes) {
+            if (!libraries.containsKey(new Key(addresses, size))) sizes.add(size);
+        }
+        final int[] scaleFactors = new int[sizes.size()];
+        int n = 0;
+        for (int size : sizes) {
+            scaleFactors[n++] = size;
+        }
+
+        final File folder = cacheFolder;
+        final int threads = ingestThreads;
+        final FutureTask<TilePyramid> pyramid = new FutureTask<TilePyramid>(new Callable<TilePyramid>() {
+            @Override
+            public TilePyramid call() throws IOException {
+                return TilePyramid.build(addresses, scaleFactors, folder, threads);
+            }
+        });
+        for (final int size : scaleFactors) {
+            installing.put(new Key(addresses, size), new FutureTask<TileLibrary>(new Callable<TileLibrary>() {
+                @Override
+                public TileLibrary call() throws Exception {
+                    try {
+                        return pyramid.get().getLibrary(size);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                        throw e;
+                    }
+                }
+            }));
+        }
+        return pyramid;
+    }
+}
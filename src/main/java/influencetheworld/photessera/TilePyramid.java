@@ -0,0 +1,84 @@
+package influencetheworld.photessera;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * PhotoPixels made from one set of photos at several sizes, like the levels
+ * of a mipmap. Every photo is decoded once for all of the sizes, so switching
+ * the size of the PhotoPixels between renders doesn't require installing the
+ * photos again. Only the sizes that were asked for are kept in memory.
+ */
+public class TilePyramid {
+
+    private final int[] scaleFactors;
+    private final TileLibrary[] libraries;
+
+    private TilePyramid(int[] scaleFactors, TileLibrary[] libraries) {
+        this.scaleFactors = scaleFactors;
+        this.libraries = libraries;
+    }
+
+    /**
+     * Installs a set of photos at every requested size.
+     * @param pixelPhotoAddresses Absolute paths of the photos
+     * @param scaleFactors The side lengths, in pixels, of the PhotoPixels. Duplicates are ignored
+     * @param cacheFolder Folder to keep a TileLibraryCache for each size in, or null to not cache the PhotoPixels
+     * @param threads Number of photos decoded at once
+     * @return The TilePyramid
+     * @throws IOException
+     */
+    public static TilePyramid build(List<String> pixelPhotoAddresses, int[] scaleFactors, File cacheFolder, int threads) throws IOException {
+        TreeSet<Integer> sizes = new TreeSet<Integer>();
+        for (int scaleFactor : scaleFactors) {
+            sizes.add(scaleFactor);
+        }
+        int[] sorted = new int[sizes.size()];
+        int n = 0;
+        for (int scaleFactor : sizes) {
+            sorted[n++] = scaleFactor;
+        }
+
+        List<String> addresses = new ArrayList<String>(pixelPhotoAddresses);
+        TileLibraryCache[] caches = new TileLibraryCache[sorted.length];
+        if (cacheFolder != null) {
+            for (int s = 0; s < sorted.length; s++) {
+                caches[s] = new TileLibraryCache(cacheFolder, addresses, sorted[s]);
+            }
+        }
+
+        try {
+            TileLibrary[] libraries = TileIngester.ingest(addresses, sorted, caches, threads);
+            for (TileLibraryCache cache : caches) {
+                if (cache != null) cache.save();
+            }
+            return new TilePyramid(sorted, libraries);
+        } finally {
+            //Cache files are kept open while the photos are installed
+            for (TileLibraryCache cache : caches) {
+                if (cache != null) cache.close();
+            }
+        }
+    }
+
+    /**
+     * @param scaleFactor The side length, in pixels, of the PhotoPixels
+     * @return The TileLibrary of that size, or null if that size wasn't installed
+     */
+    public TileLibrary getLibrary(int scaleFactor) {
+        for (int s = 0; s < scaleFactors.length; s++) {
+            if (scaleFactors[s] == scaleFactor) return libraries[s];
+        }
+        return null;
+    }
+
+    /**
+     * @return The sizes held by the pyramid, smallest first.
+     */
+    public int[] getScaleFactors() {
+        return scaleFactors.clone();
+    }
+}
@@ -1,9 +1,9 @@
 package influencetheworld.photessera;
 
 import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.Java2DFrameConverter;
-import org.jcodec.api.awt.AWTSequenceEncoder;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -12,29 +12,211 @@ import java.io.IOException;
 
 public class VideoFrameConversion {
 
+    //How generateFramesFromVideo reads the frames of a video
+    public static DecodeMode decodeMode = DecodeMode.SEQUENTIAL;
+
+    /*
+    How rendered videos are written. The codec, quality and thread count are
+    only used by the FFMPEG backend. A videoBitrate of 0 encodes with the
+    constant rate factor videoCrf instead, and 0 encoderThreads lets FFmpeg
+    pick the number of threads.
+    */
+    public static EncoderBackend encoderBackend = EncoderBackend.FFMPEG;
+    public static String videoCodec = "libx264";
+    public static int videoCrf = 18;
+    public static int videoBitrate = 0;
+    public static int encoderThreads = 0;
+
+    /**
+     * Receives the frames of a video as they are decoded.
+     */
+    public interface FrameSink {
+        /**
+         * @param frame A frame of the video. It is reused for later frames, so it must be copied to be kept after this call
+         * @param frameNumber Position of the frame in the video, starting at 0 and counting up by one
+         * @throws IOException
+         */
+        void accept(BufferedImage frame, int frameNumber) throws IOException;
+    }
 
     public static int generateFramesFromVideo(String videoAddress, String frameStorageFolder) throws FrameGrabber.Exception, IOException {
+        return generateFramesFromVideo(videoAddress, frameStorageFolder, decodeMode);
+    }
+
+    /**
+     * Saves every frame of a video as a jpg named frame-n.jpg.
+     * @param videoAddress Absolute path of the video
+     * @param frameStorageFolder Folder the frames are saved in
+     * @param mode How the frames are read
+     * @return The number of frames saved
+     * @throws FrameGrabber.Exception
+     * @throws IOException
+     */
+    public static int generateFramesFromVideo(String videoAddress, final String frameStorageFolder, DecodeMode mode) throws FrameGrabber.Exception, IOException {
         FFmpegFrameGrabber g = new FFmpegFrameGrabber(videoAddress);
         g.start();
 
-        Java2DFrameConverter converter = new Java2DFrameConverter();
-
         System.out.println(g.getLengthInFrames());
 
-        int length = g.getLengthInFrames();
-        int lastFrameNumber = 0;
-        for (int i = 0 ; i < length; i++) {
-            g.setVideoFrameNumber(i);
-            BufferedImage frame = converter.convert(g.grab());
-            if (frame != null) {
-                App.setProgressMessage("Video Deconstructing...\n\n" + i + "/" + length + " Frames Installed");
-                ImageIO.write(frame, "jpg", new File(frameStorageFolder + "\\frame-" + i + ".jpg"));
-                lastFrameNumber = i;
+        final int length = g.getLengthInFrames();
+        try {
+            return decodeFrames(g, mode, (frame, frameNumber) -> {
+                RenderProgress.setProgressMessage("Video Deconstructing...\n\n" + frameNumber + "/" + length + " Frames Installed");
+                RenderEvents.FrameWrite event = RenderEvents.ENABLED ? new RenderEvents.FrameWrite() : null;
+                if (event != null) event.begin();
+                long writing = RenderMetrics.start();
+                File file = new File(frameStorageFolder + File.separator + "frame-" + frameNumber + ".jpg");
+                ImageIO.write(frame, "jpg", file);
+                RenderMetrics.record(RenderStage.WRITE, writing, 1);
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.frameNumber = frameNumber;
+                        event.path = file.getPath();
+                        event.bytes = file.length();
+                        event.commit();
+                    }
+                }
+            });
+        } finally {
+            g.stop();
+        }
+    }
+
+    /**
+     * Decodes every frame of a video which has already been started.
+     * @param g A started grabber, which is left open
+     * @param mode How the frames are read
+     * @param sink Receives every frame
+     * @return The number of frames passed to the sink
+     * @throws IOException
+     */
+    public static int decodeFrames(FFmpegFrameGrabber g, DecodeMode mode, FrameSink sink) throws IOException {
+        if (mode == DecodeMode.SEEK) {
+            Java2DFrameConverter converter = new Java2DFrameConverter();
+            int length = g.getLengthInFrames();
+            int frames = 0;
+            for (int i = 0; i < length; i++) {
+                RenderEvents.FrameDecode event = RenderEvents.ENABLED ? new RenderEvents.FrameDecode() : null;
+                if (event != null) event.begin();
+                long decoding = RenderMetrics.start();
+                g.setVideoFrameNumber(i);
+                BufferedImage frame = converter.convert(g.grab());
+                RenderMetrics.record(RenderStage.DECODE, decoding, 1);
+                commit(event, i, frame);
+                if (frame != null) {
+                    sink.accept(frame, frames++);
+                }
             }
+            return frames;
         }
 
-        g.stop();
-        return lastFrameNumber;
+        /*
+        Frames are placed in the constant frame rate of the output by their
+        timestamps. A frame arriving later than the next slot means frames were
+        dropped, so the previous frame is shown again for the missing slots.
+        A frame arriving before the next slot has been filled means there are
+        more frames than the frame rate allows for, so it is skipped. Two
+        converters take turns so the previous frame's image is still intact
+        when it has to be repeated.
+        */
+        Java2DFrameConverter[] converters = {new Java2DFrameConverter(), new Java2DFrameConverter()};
+        double fps = g.getFrameRate();
+        long firstTimestamp = -1, lastTimestamp = -1;
+        BufferedImage previous = null;
+        int frames = 0, decoded = 0, repeated = 0, skipped = 0, turn = 0;
+        while (true) {
+            RenderEvents.FrameDecode event = RenderEvents.ENABLED ? new RenderEvents.FrameDecode() : null;
+            if (event != null) event.begin();
+            long decoding = RenderMetrics.start();
+            Frame grabbed = g.grabImage();
+            if (grabbed == null) break;
+            BufferedImage frame = converters[turn].convert(grabbed);
+            RenderMetrics.record(RenderStage.DECODE, decoding, 1);
+            commit(event, decoded, frame);
+            if (frame == null) continue;
+            decoded++;
+
+            int slot = frames;
+            if (fps > 0 && grabbed.timestamp > lastTimestamp) {
+                if (firstTimestamp < 0) firstTimestamp = grabbed.timestamp;
+                slot = (int) Math.round((grabbed.timestamp - firstTimestamp) * fps / 1000000.0);
+                lastTimestamp = grabbed.timestamp;
+            }
+
+            if (slot < frames) {
+                skipped++;
+                continue;
+            }
+            while (previous != null && frames < slot) {
+                sink.accept(previous, frames++);
+                repeated++;
+            }
+            sink.accept(frame, frames++);
+            previous = frame;
+            turn ^= 1;
+        }
+        System.out.println(String.format("Decoded %d frames into %d (%d repeated, %d skipped)", decoded, frames, repeated, skipped));
+        return frames;
+    }
+
+    /**
+     * Records a FrameDecode event for a frame once it has been decoded.
+     * @param event The event, begun before the frame was read
+     * @param frameNumber Position of the frame among the frames decoded
+     * @param frame The decoded frame, or null if nothing could be decoded
+     */
+    private static void commit(RenderEvents.FrameDecode event, int frameNumber, BufferedImage frame) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.frameNumber = frameNumber;
+            event.bytes = frame == null ? 0 : RenderEvents.size(frame);
+            event.commit();
+        }
+    }
+
+    /**
+     * Encodes a rendered frame, recording how long it took.
+     * @param encoder The encoder of the video
+     * @param frame The rendered frame
+     * @param frameNumber Position of the frame in the video
+     * @throws IOException
+     */
+    static void encode(FrameEncoder encoder, BufferedImage frame, int frameNumber) throws IOException {
+        RenderEvents.FrameEncode event = RenderEvents.ENABLED ? new RenderEvents.FrameEncode() : null;
+        if (event != null) event.begin();
+        long encoding = RenderMetrics.start();
+        encoder.encode(frame);
+        RenderMetrics.record(RenderStage.ENCODE, encoding, 1);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.frameNumber = frameNumber;
+                event.bytes = RenderEvents.size(frame);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Finishes a video, recording how long the encoder took to flush its last frames.
+     * @param encoder The encoder of the video
+     * @throws IOException
+     */
+    static void finish(FrameEncoder encoder) throws IOException {
+        RenderEvents.FrameEncode event = RenderEvents.ENABLED ? new RenderEvents.FrameEncode() : null;
+        if (event != null) event.begin();
+        long encoding = RenderMetrics.start();
+        encoder.finish();
+        RenderMetrics.record(RenderStage.ENCODE, encoding, 0);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.frameNumber = -1;
+                event.commit();
+            }
+        }
     }
 
     public static double getFrameRate(String videoAddress) throws FrameGrabber.Exception {
@@ -46,17 +228,37 @@ public class VideoFrameConversion {
         return fps;
     }
 
+    /**
+     * Creates an encoder for a rendered video using the selected encoderBackend.
+     * @param videoAddress Absolute path of the video being written
+     * @param fps Frame rate of the video
+     * @return The encoder
+     * @throws IOException
+     */
+    public static FrameEncoder createEncoder(String videoAddress, double fps) throws IOException {
+        if (encoderBackend == EncoderBackend.JCODEC) {
+            return new JCodecFrameEncoder(videoAddress, fps);
+        }
+        return new FFmpegFrameEncoder(videoAddress, fps, videoCodec, videoCrf, videoBitrate, encoderThreads);
+    }
+
     public static void convertJPGtoMovie(String vidPath, String frameStorageFolder, double fps, int numOfFrames) throws IOException {
-        AWTSequenceEncoder enc = AWTSequenceEncoder.createSequenceEncoder(new File(vidPath), (int)Math.round(fps));
-        int i = 0;
-        while (i < numOfFrames)
-        {
-            App.setProgressMessage("Assembling Frames...\n\n" + i + "/" + numOfFrames + " Frames Installed");
-            enc.encodeImage(ImageIO.read(new File(frameStorageFolder + "\\frame-" + i + ".jpg")));
-            System.out.println("Loaded Frame " + i);
-            i++;
-        }
-        enc.finish();
+        FrameEncoder enc = createEncoder(vidPath, fps);
+        try {
+            int i = 0;
+            while (i < numOfFrames)
+            {
+                RenderProgress.setProgressMessage("Assembling Frames...\n\n" + i + "/" + numOfFrames + " Frames Installed");
+                BufferedImage frame = ImageIO.read(new File(frameStorageFolder + File.separator + "frame-" + i + ".jpg"));
+                encode(enc, frame, i);
+                System.out.println("Loaded Frame " + i);
+                i++;
+            }
+            finish(enc);
+        } catch (IOException | RuntimeException | Error e) {
+            enc.abort();
+            throw e;
+        }
     }
 
 }
@@ -0,0 +1,328 @@
+package influencetheworld.photessera;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders a video without writing any frames to disk. Frames are decoded on
+ * one thread, rendered on one or more worker threads and encoded on the
+ * calling thread, so every frame is only compressed once, by the video encoder.
+ *
+ * Workers take frames in the order they were decoded but may finish them out
+ * of order, so finished frames wait in a reorder buffer until every earlier
+ * frame has been encoded. The decoder may only run a few frames per worker
+ * ahead of the encoder, which bounds the number of frames held in memory no
+ * matter how long the video is or how unevenly frames take to render.
+ *
+ * The video is opened as soon as the pipeline is made. run() closes it once
+ * the video is rendered, but a pipeline which is never run has to be closed.
+ */
+public class VideoPipeline implements Closeable {
+
+    //Number of frames each worker may have decoded, rendering or waiting to be encoded
+    private static final int FRAMES_IN_FLIGHT_PER_THREAD = 2;
+
+    //Marks the end of the video in a queue
+    private static final IndexedFrame END = new IndexedFrame(-1, null);
+
+    private final FFmpegFrameGrabber grabber;
+    private boolean closed;
+
+    /**
+     * Renders a single frame of the video.
+     */
+    public interface FrameRenderer {
+        /**
+         * @param frame A frame of the original video
+         * @param frameNumber Position of the frame in the video, starting at 0
+         * @return The rendered frame
+         * @throws IOException
+         */
+        BufferedImage render(BufferedImage frame, int frameNumber) throws IOException;
+    }
+
+    /**
+     * Rendered frames waiting for every frame before them to be encoded.
+     */
+    private static class ReorderBuffer {
+        private final Map<Integer, BufferedImage> frames = new HashMap<Integer, BufferedImage>();
+        private int length = -1;
+        private boolean failed;
+
+        synchronized void put(int frameNumber, BufferedImage frame) {
+            frames.put(frameNumber, frame);
+            RenderMetrics.framesWaitingToEncode(1);
+            notifyAll();
+        }
+
+        /**
+         * Marks how many frames the video has, once every frame has been decoded.
+         */
+        synchronized void end(int length) {
+            this.length = length;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        /**
+         * Drops every frame still waiting, once the video has stopped rendering.
+         */
+        synchronized void clear() {
+            RenderMetrics.framesWaitingToEncode(-frames.size());
+            frames.clear();
+        }
+
+        /**
+         * Waits for a frame to be rendered.
+         * @return The rendered frame, or null if the video ended before it or rendering failed
+         */
+        synchronized BufferedImage take(int frameNumber) throws InterruptedException {
+            while (!failed && !frames.containsKey(frameNumber) && (length < 0 || frameNumber < length)) {
+                wait();
+            }
+            if (failed) return null;
+            BufferedImage frame = frames.remove(frameNumber);
+            if (frame != null) RenderMetrics.framesWaitingToEncode(-1);
+            return frame;
+        }
+    }
+
+    private static class IndexedFrame {
+        final int frameNumber;
+        final BufferedImage image;
+
+        IndexedFrame(int frameNumber, BufferedImage image) {
+            this.frameNumber = frameNumber;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Opens a video so its size and frame rate are known before it is rendered.
+     * @param videoAddress Absolute path of the video
+     * @throws FrameGrabber.Exception
+     */
+    public VideoPipeline(String videoAddress) throws FrameGrabber.Exception {
+        this.grabber = new FFmpegFrameGrabber(videoAddress);
+        try {
+            this.grabber.start();
+        } catch (FrameGrabber.Exception | RuntimeException e) {
+            try {
+                grabber.release();
+            } catch (FrameGrabber.Exception releaseFailure) {
+                e.addSuppressed(releaseFailure);
+            }
+            throw e;
+        }
+    }
+
+    public int getImageWidth() {
+        return grabber.getImageWidth();
+    }
+
+    public int getImageHeight() {
+        return grabber.getImageHeight();
+    }
+
+    public double getFrameRate() {
+        return grabber.getFrameRate();
+    }
+
+    /**
+     * @return The number of frames the container says the video has, which may be an estimate.
+     */
+    public int getLengthInFrames() {
+        return grabber.getLengthInFrames();
+    }
+
+    /**
+     * Decodes, renders and encodes every frame of the video on a single render thread, then closes the video.
+     * @param renderer Renders each frame
+     * @param encoder Receives the rendered frames in order, and is finished once the last frame is encoded, or aborted if the render fails
+     * @return The number of frames rendered
+     * @throws IOException
+     */
+    public int run(FrameRenderer renderer, FrameEncoder encoder) throws IOException {
+        return run(renderer, encoder, 1);
+    }
+
+    /**
+     * Decodes, renders and encodes every frame of the video, then closes the video.
+     * @param renderer Renders each frame. Called from every render thread at once, each with a different frame
+     * @param encoder Receives the rendered frames in order, and is finished once the last frame is encoded, or aborted if the render fails
+     * @param renderThreads Number of frames rendered at once
+     * @return The number of frames rendered
+     * @throws IOException
+     */
+    public int run(final FrameRenderer renderer, FrameEncoder encoder, int renderThreads) throws IOException {
+        renderThreads = Math.max(renderThreads, 1);
+        final BlockingQueue<IndexedFrame> decoded = new LinkedBlockingQueue<IndexedFrame>();
+        final ReorderBuffer rendered = new ReorderBuffer();
+        final Semaphore inFlight = new Semaphore(renderThreads * FRAMES_IN_FLIGHT_PER_THREAD);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int length = getLengthInFrames();
+
+        Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int frames = VideoFrameConversion.decodeFrames(grabber, DecodeMode.SEQUENTIAL, (frame, frameNumber) -> {
+                        //The converter reuses its image for every frame, so each one is copied before being queued
+                        try {
+                            inFlight.acquire();
+                            decoded.put(new IndexedFrame(frameNumber, Java2DFrameConverter.cloneBufferedImage(frame)));
+                            RenderMetrics.framesWaitingToRender(1);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    });
+                    decoded.put(END);
+                    rendered.end(frames);
+                } catch (InterruptedException | InterruptedIOException e) {
+                    //Another stage failed and is shutting the pipeline down
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    rendered.fail();
+                }
+            }
+        }, "Photessera Decoder");
+
+        Thread[] workers = new Thread[renderThreads];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        IndexedFrame frame;
+                        while ((frame = decoded.take()) != END) {
+                            RenderMetrics.framesWaitingToRender(-1);
+                            rendered.put(frame.frameNumber, renderer.render(frame.image, frame.frameNumber));
+                        }
+                        //Leave the end of the video for the other workers to find
+                        decoded.put(END);
+                    } catch (InterruptedException e) {
+                        //Another stage failed and is shutting the pipeline down
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                        rendered.fail();
+                    }
+                }
+            }, "Photessera Renderer " + w);
+        }
+
+        decoder.start();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+
+        int frames = 0;
+        try {
+            BufferedImage frame;
+            while ((frame = rendered.take(frames)) != null) {
+                RenderProgress.setProgressMessage("Rendering Frames...\n\n" + frames + "/" + length + " Frames Rendered");
+                VideoFrameConversion.encode(encoder, frame, frames);
+                inFlight.release();
+                frames++;
+            }
+            if (failure.get() == null) {
+                VideoFrameConversion.finish(encoder);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            decoder.interrupt();
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            joinQuietly(decoder);
+            for (Thread worker : workers) {
+                joinQuietly(worker);
+            }
+
+            //Frames left behind by a failed render are no longer waiting
+            for (IndexedFrame frame : decoded) {
+                if (frame != END) RenderMetrics.framesWaitingToRender(-1);
+            }
+            rendered.clear();
+
+            //A failed render never finishes its video, which would otherwise keep the encoder and its file open.
+            //Cleanup failures are attached to the failure of the render rather than hiding it
+            Throwable primary = failure.get();
+            if (primary != null) {
+                try {
+                    encoder.abort();
+                } catch (Throwable e) {
+                    primary.addSuppressed(e);
+                }
+            }
+            try {
+                close();
+            } catch (IOException | RuntimeException e) {
+                if (primary != null) primary.addSuppressed(e);
+                else failure.set(e);
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        if (t != null) throw new IOException("Video rendering failed", t);
+        System.out.println(frames + " Frames Rendered");
+        return frames;
+    }
+
+    /**
+     * Closes the video, stopping and releasing the grabber. Does nothing if the video is already closed.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        FrameGrabber.Exception failure = null;
+        try {
+            grabber.stop();
+        } catch (FrameGrabber.Exception e) {
+            failure = e;
+        }
+        try {
+            grabber.release();
+        } catch (FrameGrabber.Exception e) {
+            if (failure == null) failure = e;
+            else failure.addSuppressed(e);
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}